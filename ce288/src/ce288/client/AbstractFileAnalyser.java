@@ -7,7 +7,39 @@ import ce288.tasks.Task;
 import ce288.tasks.TaskRepositoryInterface;
 
 public abstract class AbstractFileAnalyser {
+
+	/**
+	 * Minimum time between two reports of the progress of a {@link Task}, in milliseconds.
+	 */
+	public static final long PROGRESS_PERIOD = 2000;
+
+	/**
+	 * Number of lines read by the last call to process().
+	 */
+	protected long lineCount;
 	
-	public abstract void process(UUID clientId, InputStream in, Task task, TaskRepositoryInterface stub) throws FileAnalyserException;
+	/**
+	 * Analyses the lines of the section of a {@link Task}.
+	 * 
+	 * @param clientId
+	 *            the id of the {@link Client}
+	 * @param in
+	 *            the lines that start in the section, which may start after the position of the
+	 *            Task if it was split from another one
+	 * @param start
+	 *            the offset in the file of the first byte of the stream
+	 * @param task
+	 *            the Task
+	 * @param stub
+	 *            the remote repository, where the progress and the result are sent to
+	 * @throws FileAnalyserException
+	 *             if the section could not be analysed
+	 */
+	public abstract void process(UUID clientId, InputStream in, long start, Task task,
+			TaskRepositoryInterface stub) throws FileAnalyserException;
+
+	public long getLineCount() {
+		return lineCount;
+	}
 
 }
@@ -1,77 +1,225 @@
 package ce288.client;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.rmi.NotBoundException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ce288.fileServer.FileServer;
+import ce288.metrics.Counter;
+import ce288.metrics.Histogram;
+import ce288.metrics.Meter;
+import ce288.metrics.Metrics;
 import ce288.tasks.Task;
+import ce288.tasks.TaskRepository;
 import ce288.tasks.TaskRepositoryInterface;
+import ce288.tasks.TaskRepositoryLocator;
 
 public class Client {
 
 	public final static Logger logger = LoggerFactory.getLogger(Client.class);
 
+	/**
+	 * Number of {@link Task}s leased at once from the repository.
+	 */
+	public static final int BATCH_SIZE = 4;
+
+	/**
+	 * Time the repository may hold a request for new {@link Task}s while there are none.
+	 */
+	public static final long POLL_WAIT = 20000;
+
+	/**
+	 * Period of the renewal of the lease of the {@link Task} being processed, which must be
+	 * shorter than {@link TaskRepository#LEASE_RENEWAL}.
+	 */
+	public static final long HEARTBEAT_PERIOD = 3000;
+
+	/**
+	 * System property that, set to true, asks the {@link FileServer}s to send the sections
+	 * compressed, for the Clients whose network is slower than inflating them.
+	 */
+	public static final String COMPRESS_PROPERTY = "ce288.client.compress";
+
 	private UUID id;
 	private String rmiServerHostname; 
 
+	private boolean compress;
+
+	/**
+	 * {@link Task}s already leased to this Client and waiting to be processed.
+	 */
+	private Queue<Task> queue;
+
+	/**
+	 * The open connections to the {@link FileServer}s, by address.
+	 */
+	private Map<InetAddress, FileServerConnection> connections;
+
+	/**
+	 * The section already requested for the next queued {@link Task}, by Task id.
+	 */
+	private Map<UUID, SectionRequest> requests;
+
+	private Metrics metrics;
+
+	private Counter tasksProcessed;
+	private Counter tasksSkipped;
+	private Counter tasksFailed;
+
+	/**
+	 * Time to fetch and analyse a section, in milliseconds.
+	 */
+	private Histogram taskTimes;
+
+	private Meter analysedBytes;
+	private Meter analysedLines;
+
 	public Client(String rmiServerHostname) {
 		id = UUID.randomUUID();
 		this.rmiServerHostname = rmiServerHostname;
+		compress = Boolean.getBoolean(COMPRESS_PROPERTY);
+		queue = new ArrayDeque<Task>();
+		connections = new HashMap<InetAddress, FileServerConnection>();
+		requests = new HashMap<UUID, SectionRequest>();
+		metrics = new Metrics();
+		tasksProcessed = metrics.counter("tasksProcessed");
+		tasksSkipped = metrics.counter("tasksSkipped");
+		tasksFailed = metrics.counter("tasksFailed");
+		taskTimes = metrics.histogram("taskTime");
+		analysedBytes = metrics.meter("analysedBytes");
+		analysedLines = metrics.meter("analysedLines");
 	}
 
 	public void execute() {
 		logger.info("Client {} started.", id);
+		metrics.register("Client", id.toString());
 		try {
-			Registry registry = LocateRegistry.getRegistry(rmiServerHostname);
-			TaskRepositoryInterface stub = (TaskRepositoryInterface) registry
-					.lookup("TaskRepository");
+			TaskRepositoryInterface stub = TaskRepositoryLocator.locate(rmiServerHostname);
+			HeartbeatThread heartbeat = new HeartbeatThread(id, stub, HEARTBEAT_PERIOD);
+			Thread heartbeatThread = new Thread(heartbeat, "Heartbeat");
+			heartbeatThread.setDaemon(true);
+			heartbeatThread.start();
 			while (true) {
-				Task task = stub.getNext(id);
-				if (task == null) {
-					Thread.sleep(1000);
-				} else {
-					logger.info("Client started task {}.", task.getId());
-					try {
-						Socket socket = new Socket(task.getLocation(), FileServer.PORT);
-						BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-								socket.getOutputStream()));
-
-						// Send filename
-						out.write(task.getFilename());
-						out.newLine();
-
-						// Send file start position
-						long pos = Math.max(0, task.getPosition() - 100);
-						out.write(Long.toString(pos));
-						out.newLine();
-
-						// Send section length
-						out.write(Long.toString(task.getLength() + 200));
-						out.newLine();
-
-						out.flush();
-						AbstractFileAnalyser analyser = AbstractFileAnalyserFactory
-								.getAnalyser(task.getFormat());
-						analyser.process(id, socket.getInputStream(), task, stub);
-						socket.close();
-						logger.info("Task {} finished.", task.getId());
-					} catch (IOException e) {
-						logger.error(e.getMessage(), e);
-					}
+				if (queue.isEmpty()) {
+					queue.addAll(stub.getNextBatch(id, BATCH_SIZE, POLL_WAIT));
+				}
+				Task task = queue.poll();
+				if (task != null) {
+					process(task, stub, heartbeat);
 				}
 			}
-		} catch (IOException | NotBoundException | InterruptedException e) {
+		} catch (IOException | NotBoundException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Fetches the section of the file from the {@link FileServer} and analyses it.
+	 * 
+	 * @param task
+	 *            the {@link Task} leased to this Client
+	 * @param stub
+	 *            the remote repository, where the result is sent to
+	 * @param heartbeat
+	 *            renews the lease while the Task is processed, and cancels it if the lease is lost
+	 */
+	private void process(Task task, TaskRepositoryInterface stub, HeartbeatThread heartbeat) {
+		logger.info("Client started task {}.", task.getId());
+		try {
+			// The Task may have been finished by a backup while it was queued. The first renewal
+			// also tells the repository the processing started
+			if (!stub.renewLease(id, task.getId())) {
+				logger.info("Task {} is no longer leased to this Client, skipping it.", task.getId());
+				// Its section, if it was requested, is skipped by the next receive
+				requests.remove(task.getId());
+				tasksSkipped.increment();
+				return;
+			}
+			long start = System.currentTimeMillis();
+			InputStream in;
+			long position;
+			try {
+				SectionRequest request = fetch(task);
+				in = request.connection.receive(request.requestId);
+				position = request.connection.getPosition();
+				request(queue.peek());
+			} catch (IOException e) {
+				logger.warn("Could not fetch the section of task {}: {}", task.getId(),
+						e.getMessage());
+				tasksFailed.increment();
+				stub.setFailure(id, task.getId(), "Could not fetch the section");
+				return;
+			}
+			heartbeat.setTask(task, in);
+			AbstractFileAnalyser analyser = AbstractFileAnalyserFactory
+					.getAnalyser(task.getFormat());
+			try {
+				analyser.process(id, in, position, task, stub);
+			} finally {
+				in.close();
+			}
+			tasksProcessed.increment();
+			taskTimes.record(System.currentTimeMillis() - start);
+			analysedBytes.mark(task.getLength());
+			analysedLines.mark(analyser.getLineCount());
+			logger.info("Task {} finished.", task.getId());
+		} catch (IOException e) {
+			tasksFailed.increment();
 			logger.error(e.getMessage(), e);
+		} finally {
+			heartbeat.setTask(null, null);
+		}
+	}
+
+	/**
+	 * Requests the section of the next queued Task, without waiting for it, so the
+	 * {@link FileServer} sends it while the current one is analysed. Only one section is
+	 * requested ahead, as a queued Task may be finished by a backup before it is processed, and
+	 * its section is then received for nothing.
+	 */
+	private void request(Task task) {
+		if (task == null || requests.containsKey(task.getId())) {
+			return;
+		}
+		try {
+			requests.put(task.getId(), send(task));
+		} catch (IOException e) {
+			// Sent again when the Task is processed
+			logger.warn("Could not request the section of task {}: {}", task.getId(),
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the request of the section of a Task, requesting it again if the connection it was
+	 * requested through was closed.
+	 */
+	private SectionRequest fetch(Task task) throws IOException {
+		SectionRequest request = requests.remove(task.getId());
+		if (request == null || !request.connection.isOpen()) {
+			request = send(task);
+		}
+		return request;
+	}
+
+	private SectionRequest send(Task task) throws IOException {
+		FileServerConnection connection = connections.get(task.getLocation());
+		if (connection == null || !connection.isOpen()) {
+			connection = new FileServerConnection(task.getLocation(), FileServer.PORT);
+			connections.put(task.getLocation(), connection);
 		}
+		long requestId = connection.send(task.getFilename(), task.getPosition(),
+				task.getLength(), compress);
+		return new SectionRequest(connection, requestId);
 	}
 
 	public static void main(String[] args) {
@@ -84,4 +232,21 @@ public class Client {
 		}
 		client.execute();
 	}
+
+	/**
+	 * A section requested through a connection and not yet received.
+	 */
+	private static class SectionRequest {
+
+		private final FileServerConnection connection;
+
+		private final long requestId;
+
+		public SectionRequest(FileServerConnection connection, long requestId) {
+			this.connection = connection;
+			this.requestId = requestId;
+		}
+
+	}
+
 }
@@ -3,10 +3,8 @@
  */
 package ce288.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.util.Calendar;
 import java.util.UUID;
@@ -28,10 +26,14 @@ public class FileEmbrace extends AbstractFileAnalyser {
 	}
 
 	@Override
-	public void process(UUID clientId, InputStream in, Task task, TaskRepositoryInterface stub)
-			throws FileAnalyserException {
+	public void process(UUID clientId, InputStream in, long start, Task task,
+			TaskRepositoryInterface stub) throws FileAnalyserException {
 		int lineCounter = 0;
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		lineCount = 0;
+		SectionReader reader = new SectionReader(in);
+		long lastReport = System.currentTimeMillis();
+		// Number of bytes of the section to process, reduced if the rest is split to another Task
+		long limit = task.getLength();
 
 		logger.debug("Task start={} length={}", task.getPosition(), task.getLength());
 
@@ -42,8 +44,28 @@ public class FileEmbrace extends AbstractFileAnalyser {
 			Calendar calendar = Calendar.getInstance();
 			calendar.clear();
 			// If the section is at the beginning, then skip the header lines
-			boolean header = (task.getPosition() == 0);
-			while ((line = reader.readLine()) != null) {
+			boolean header = (start == 0);
+			while (true) {
+				// Reports the lines before the next one, so the Task can resume from it
+				long bytesDone = start + reader.getOffset() - task.getPosition();
+				if (limit < task.getLength() && bytesDone >= limit) {
+					logger.debug("Stopping at {} because the rest of the section was split", bytesDone);
+					break;
+				}
+				if (bytesDone > 0 && bytesDone < limit && lineCounter > 0
+						&& System.currentTimeMillis() - lastReport >= PROGRESS_PERIOD) {
+					limit = stub.reportProgress(clientId, task.getId(), bytesDone, result.getLogs());
+					if (limit < 0) {
+						logger.info("Task {} is no longer leased, giving up.", task.getId());
+						lineCount = lineCounter;
+						return;
+					}
+					result = new Result(task.getId());
+					lastReport = System.currentTimeMillis();
+				}
+				if ((line = reader.readLine()) == null) {
+					break;
+				}
 				lineCounter += 1;
 
 				// Discard lines at the beginning of the file that are header
@@ -55,26 +77,14 @@ public class FileEmbrace extends AbstractFileAnalyser {
 					continue;
 				}
 
-				// Discard line due to truncation at the start
-				if (lineCounter == 1) {
-					logger.debug("Skipping line because is section start");
-					continue;
-				}
-
 				// Reads the time values
 				String[] words = line.trim().split("\\s+", 6);
+				// The section ends on a line boundary, so only the lines of the file are incomplete
 				if (words.length < 6) {
-					reader.mark(10);
-					if (reader.read() > 0) {
-						reader.reset();
-						String msg = String.format("Line %d is incomplete: %s", lineCounter, line);
-						logger.debug("@{} - {}", task.getPosition(), msg);
-						result.addLog(task.getPosition(), msg);
-						continue;
-					} else {
-						logger.debug("Skipping line {} because is section end: {}", lineCounter, line);
-						break;
-					}
+					String msg = String.format("Line %d is incomplete: %s", lineCounter, line);
+					logger.debug("@{} - {}", task.getPosition(), msg);
+					result.addLog(task.getPosition(), msg);
+					continue;
 				}
 				try {
 					int day = Integer.valueOf(words[0]);
@@ -111,6 +121,7 @@ public class FileEmbrace extends AbstractFileAnalyser {
 				}
 
 			}
+			lineCount = lineCounter;
 			stub.setResult(clientId, task.getId(), result);
 		} catch (IOException e) {
 			try {
@@ -0,0 +1,280 @@
+package ce288.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.fileServer.FileServerWorker;
+
+/**
+ * A persistent connection to a {@link ce288.fileServer.FileServer}, through which the
+ * {@link Client} requests the sections of its {@link ce288.tasks.Task}s.
+ *
+ * Several requests may be sent before their responses are read, so the FileServer sends the
+ * sections back to back. The responses come in the order of the requests, and reading one skips
+ * whatever is left of the previous ones. The sections the FileServer chose to send compressed
+ * are read through an inflating stream. Any error other than a refused request closes the
+ * connection, and the requests not yet answered must be sent again through a new one.
+ */
+public class FileServerConnection {
+
+	public final static Logger logger = LoggerFactory.getLogger(FileServerConnection.class);
+
+	private static final int BUFSIZE = 65536;
+
+	private Socket socket;
+
+	private DataOutputStream out;
+
+	private DataInputStream in;
+
+	private long nextRequestId;
+
+	/**
+	 * The requests whose responses were not read yet, in order.
+	 */
+	private Queue<Long> outstanding;
+
+	/**
+	 * The section being read, or null.
+	 */
+	private Section current;
+
+	/**
+	 * Position in the file of the section being read.
+	 */
+	private long position;
+
+	/**
+	 * The inflater of the section being read, if it was compressed, or null.
+	 */
+	private Inflater inflater;
+
+	public FileServerConnection(InetAddress address, int port) throws IOException {
+		socket = new Socket(address, port);
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFSIZE));
+		nextRequestId = 0;
+		outstanding = new ArrayDeque<Long>();
+	}
+
+	/**
+	 * Requests a section of a file, without waiting for the response.
+	 *
+	 * @param filename
+	 *            the name of the file in the directory of the FileServer
+	 * @param pos
+	 *            the position of the section
+	 * @param length
+	 *            the length of the section
+	 * @param deflate
+	 *            whether the section may be sent compressed
+	 * @return the id of the request, to read its response with {@link #receive(long)}
+	 * @throws IOException
+	 *             if the request could not be sent, in which case the connection is closed
+	 */
+	public synchronized long send(String filename, long pos, long length, boolean deflate)
+			throws IOException {
+		byte[] name = filename.getBytes("UTF-8");
+		int frameLength = FileServerWorker.REQUEST_HEADER_SIZE + name.length;
+		if (frameLength > FileServerWorker.MAX_REQUEST_SIZE) {
+			throw new IOException("Filename too long: " + filename);
+		}
+		long requestId = nextRequestId++;
+		try {
+			out.writeInt(frameLength);
+			out.writeLong(requestId);
+			out.writeByte(deflate ? FileServerWorker.FLAG_DEFLATE : 0);
+			out.writeLong(pos);
+			out.writeLong(length);
+			out.writeShort(name.length);
+			out.write(name);
+			out.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		outstanding.add(requestId);
+		return requestId;
+	}
+
+	/**
+	 * Reads the response to a request, skipping the responses to the previous ones.
+	 *
+	 * The section is made of the lines that start in the requested bytes, and its position is
+	 * given by {@link #getPosition()}.
+	 *
+	 * @param requestId
+	 *            the id returned by {@link #send(String, long, long, boolean)}
+	 * @return the bytes of the section, which must be read before the next call or are skipped
+	 * @throws IOException
+	 *             if the FileServer refused the request, or if the response could not be read,
+	 *             in which case the connection is closed
+	 */
+	public synchronized InputStream receive(long requestId) throws IOException {
+		String refused = null;
+		try {
+			while (true) {
+				if (current != null) {
+					current.drain();
+					current = null;
+				}
+				if (inflater != null) {
+					inflater.end();
+					inflater = null;
+				}
+				Long expected = outstanding.poll();
+				if (expected == null || expected > requestId) {
+					throw new IOException("Request " + requestId + " is not outstanding");
+				}
+				long id = in.readLong();
+				if (id != expected) {
+					throw new IOException("Received response " + id + " instead of " + expected);
+				}
+				byte status = in.readByte();
+				if (status == FileServerWorker.ERROR) {
+					String msg = in.readUTF();
+					if (id == requestId) {
+						refused = msg;
+						break;
+					}
+				} else if (status == FileServerWorker.OK) {
+					position = in.readLong();
+					current = new Section(in.readLong());
+					if (id == requestId) {
+						return current;
+					}
+				} else if (status == FileServerWorker.OK_DEFLATED) {
+					position = in.readLong();
+					current = new Section(in.readLong());
+					// Not ended by close(), which may be called while another thread inflates
+					inflater = new Inflater();
+					if (id == requestId) {
+						return new InflaterInputStream(current, inflater, BUFSIZE);
+					}
+				} else {
+					throw new IOException("Invalid response status " + status);
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		throw new IOException("FileServer refused the request: " + refused);
+	}
+
+	/**
+	 * Gets the position in the file of the section returned by the last call to
+	 * {@link #receive(long)}.
+	 *
+	 * @return the offset of its first byte
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	public synchronized void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+		outstanding.clear();
+		current = null;
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	/**
+	 * A section in the responses, which ends after its length.
+	 *
+	 * Closing it, which may be done from another thread to cancel the processing, makes the
+	 * following reads fail, and the rest of the section is skipped by the next response.
+	 */
+	private class Section extends InputStream {
+
+		private long remaining;
+
+		private volatile boolean closed;
+
+		public Section(long length) {
+			this.remaining = length;
+			this.closed = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (closed) {
+				throw new IOException("Section closed");
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			int c = in.read();
+			if (c < 0) {
+				throw new IOException("Connection closed before the end of the section");
+			}
+			remaining--;
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Section closed");
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) {
+				throw new IOException("Connection closed before the end of the section");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		/**
+		 * Skips the rest of the section.
+		 */
+		private void drain() throws IOException {
+			byte[] buffer = new byte[BUFSIZE];
+			while (remaining > 0) {
+				int n = (int) Math.min(buffer.length, remaining);
+				in.readFully(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+package ce288.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Task;
+import ce288.tasks.TaskRepositoryInterface;
+
+/**
+ * Periodically renews the lease of the {@link Task} the {@link Client} is processing, so the
+ * repository does not give it to another Client while this one is still alive.
+ * 
+ * If the lease is lost, as when a backup of the Task finished first, the stream the section is
+ * read from is closed, so the processing stops.
+ */
+public class HeartbeatThread implements Runnable {
+
+	public final static Logger logger = LoggerFactory.getLogger(HeartbeatThread.class);
+
+	private UUID clientId;
+
+	private TaskRepositoryInterface stub;
+
+	private long period;
+
+	/**
+	 * The Task being processed, or null if the Client is idle.
+	 */
+	private volatile Task task;
+
+	/**
+	 * The stream the section of the Task is read from.
+	 */
+	private volatile Closeable section;
+
+	public HeartbeatThread(UUID clientId, TaskRepositoryInterface stub, long period) {
+		this.clientId = clientId;
+		this.stub = stub;
+		this.period = period;
+	}
+
+	/**
+	 * Sets the Task whose lease must be renewed.
+	 * 
+	 * @param task
+	 *            the Task being processed, or null if the Client is idle
+	 * @param section
+	 *            closed to cancel the processing if the lease is lost, or null
+	 */
+	public synchronized void setTask(Task task, Closeable section) {
+		this.task = task;
+		this.section = section;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(period);
+				Task current = task;
+				if (current != null && !stub.renewLease(clientId, current.getId())) {
+					logger.warn("Lease of task {} was lost, cancelling it.", current.getId());
+					cancel(current);
+				}
+			} catch (RemoteException e) {
+				logger.error(e.getMessage(), e);
+			} catch (InterruptedException e) {
+				logger.error(e.getMessage(), e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the section of the Task, if the Client is still processing it.
+	 */
+	private synchronized void cancel(Task current) {
+		if (task != current || section == null) {
+			return;
+		}
+		try {
+			section.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+}
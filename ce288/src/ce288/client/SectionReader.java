@@ -0,0 +1,70 @@
+package ce288.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the lines of a section of a file, keeping the number of bytes consumed, so the
+ * analysers know the offset in the file of each line.
+ */
+public class SectionReader {
+
+	private InputStream in;
+
+	private ByteArrayOutputStream line;
+
+	/**
+	 * Number of bytes consumed, including the line terminators.
+	 */
+	private long offset;
+
+	public SectionReader(InputStream in) {
+		this.in = new BufferedInputStream(in);
+		this.line = new ByteArrayOutputStream(128);
+		this.offset = 0;
+	}
+
+	/**
+	 * Reads a line terminated by '\n' or "\r\n", or by the end of the stream.
+	 * 
+	 * @return the line without the terminator, or null at the end of the stream
+	 * @throws IOException
+	 *             if the stream could not be read
+	 */
+	public String readLine() throws IOException {
+		line.reset();
+		int c;
+		while ((c = in.read()) >= 0) {
+			offset++;
+			if (c == '\n') {
+				return toLine();
+			}
+			line.write(c);
+		}
+		if (line.size() == 0) {
+			return null;
+		}
+		return toLine();
+	}
+
+	/**
+	 * Gets the number of bytes consumed, which is the offset in the section of the next line.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	private String toLine() {
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] == '\r') {
+			length--;
+		}
+		return new String(bytes, 0, length);
+	}
+
+}
@@ -0,0 +1,107 @@
+package ce288.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import ce288.fileServer.FileServer;
+
+/**
+ * Compares the throughput of the section transfers from a {@link FileServer} with and without
+ * compression.
+ *
+ * The file is requested in sections, with as many requests in flight as a {@link Client} has
+ * queued, and each section is read to the end, as the analysers do. Each mode runs several
+ * rounds, the first of the compressed ones including the compression by the FileServer, the
+ * following ones served from its cache.
+ *
+ * Usage: TransferBenchmark host filename [SECTION_SIZE [ROUNDS]], where SECTION_SIZE is in
+ * bytes and the file is given relative to the directory of the FileServer.
+ */
+public class TransferBenchmark {
+
+	public static final long DEFAULT_SECTION_SIZE = 4 * 1048576;
+
+	public static final int DEFAULT_ROUNDS = 3;
+
+	private static final int BUFSIZE = 65536;
+
+	private InetAddress address;
+
+	private String filename;
+
+	private long sectionSize;
+
+	public TransferBenchmark(InetAddress address, String filename, long sectionSize) {
+		this.address = address;
+		this.filename = filename;
+		this.sectionSize = sectionSize;
+	}
+
+	/**
+	 * Reads every section of the file once.
+	 *
+	 * @param deflate
+	 *            whether the sections may be sent compressed
+	 * @return the number of bytes of the sections, uncompressed
+	 * @throws IOException
+	 *             if some section could not be read
+	 */
+	public long round(boolean deflate) throws IOException {
+		FileServerConnection connection = new FileServerConnection(address, FileServer.PORT);
+		try {
+			Queue<Long> inFlight = new ArrayDeque<Long>();
+			Queue<Long> positions = new ArrayDeque<Long>();
+			byte[] buffer = new byte[BUFSIZE];
+			long pos = 0;
+			long total = 0;
+			boolean end = false;
+			while (!end || !inFlight.isEmpty()) {
+				while (!end && inFlight.size() < Client.BATCH_SIZE) {
+					inFlight.add(connection.send(filename, pos, sectionSize, deflate));
+					positions.add(pos);
+					pos += sectionSize;
+				}
+				InputStream in = connection.receive(inFlight.poll());
+				long requested = positions.poll();
+				long length = 0;
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					length += n;
+				}
+				in.close();
+				total += length;
+				// The sections are aligned to the line starts, so a section in the middle may be
+				// short, or empty if a line spans it, but then it starts after the requested
+				// position. An empty section at or before it is at the end of the file.
+				end = end || length == 0 && connection.getPosition() <= requested;
+			}
+			return total;
+		} finally {
+			connection.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: TransferBenchmark host filename [SECTION_SIZE [ROUNDS]]");
+			return;
+		}
+		long sectionSize = args.length >= 3 ? Long.parseLong(args[2]) : DEFAULT_SECTION_SIZE;
+		int rounds = args.length >= 4 ? Integer.parseInt(args[3]) : DEFAULT_ROUNDS;
+		TransferBenchmark benchmark = new TransferBenchmark(InetAddress.getByName(args[0]),
+				args[1], sectionSize);
+		for (boolean deflate : new boolean[] { false, true }) {
+			for (int i = 1; i <= rounds; i++) {
+				long start = System.nanoTime();
+				long bytes = benchmark.round(deflate);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-10s round %d: %d bytes in %.3f s, %.1f MB/s%n",
+						deflate ? "deflate" : "raw", i, bytes, seconds, bytes / seconds / 1048576);
+			}
+		}
+	}
+
+}
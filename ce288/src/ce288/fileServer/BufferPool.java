@@ -0,0 +1,49 @@
+package ce288.fileServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct buffers of a fixed size, reused by the {@link FileServerWorker}s that can not
+ * send a section without copying it.
+ * 
+ * At most capacity buffers are kept. When the pool is empty a new buffer is allocated, and it is
+ * dropped on release if the pool is full, so the pool never blocks.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool is empty.
+	 * 
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. It must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		buffers.offer(buffer);
+	}
+
+}
@@ -52,12 +52,18 @@ public class ConsoleThread implements Runnable {
 				processTasks(tokens);
 			} else if (command.startsWith("results")) {
 				processResults(tokens);
+			} else if (command.startsWith("sections")) {
+				processSections(tokens);
+			} else if (command.startsWith("stats")) {
+				processStats();
 			} else if (command.startsWith("help")) {
 				System.out.println("Command list:");
-				System.out.println("  add path [SECTION_SIZE]");
+				System.out.println("  add path [SECTION_SIZE|auto [PRIORITY]]");
 				System.out.println("  ip [NEW_IP]");
 				System.out.println("  path [NEW_PATH]");
 				System.out.println("  results [OUTPUT_FILE_PATH]");
+				System.out.println("  sections FILENAME");
+				System.out.println("  stats");
 				System.out.println("  status");
 				System.out.println("  tasks [nostatus]");
 			} else {
@@ -73,7 +79,14 @@ public class ConsoleThread implements Runnable {
 			String filename = tokens.next();
 			try {
 				if (tokens.hasNext()) {
-					parent.addFile(filename, Long.parseLong(tokens.next()));
+					String size = tokens.next();
+					long sectionSize = size.equals("auto") ? FileServer.AUTO_SECTION_SIZE : Long
+							.parseLong(size);
+					if (tokens.hasNext()) {
+						parent.addFile(filename, sectionSize, Integer.parseInt(tokens.next()));
+					} else {
+						parent.addFile(filename, sectionSize);
+					}
 				} else {
 					parent.addFile(filename);
 				}
@@ -146,6 +159,42 @@ public class ConsoleThread implements Runnable {
 		}
 	}
 
+	private void processSections(Iterator<String> tokens) {
+		if (tokens.hasNext()) {
+			String filename = tokens.next();
+			FileScan scan = parent.getScan(filename);
+			if (scan == null) {
+				System.out.println("File " + filename + " was not added.");
+				return;
+			}
+			System.out.println(filename + ": " + scan.getFormat() + ", " + scan.getRecords()
+					+ " records");
+			for (FileScan.Section section : scan.getSections()) {
+				System.out.println("  " + section);
+			}
+		} else {
+			System.out.println("Invalid syntax: sections FILENAME");
+		}
+	}
+
+	private void processStats() {
+		System.out.println("File server:");
+		printStats(parent.getMetrics().snapshot());
+		try {
+			Map<String, Long> stats = parent.getStatistics();
+			System.out.println("Task repository:");
+			printStats(stats);
+		} catch (RemoteException e) {
+			System.out.println("Could not connect to remote service.");
+		}
+	}
+
+	private void printStats(Map<String, Long> stats) {
+		for (Map.Entry<String, Long> entry : stats.entrySet()) {
+			System.out.println("  " + entry.getKey() + " = " + entry.getValue());
+		}
+	}
+
 	private void processResults(Iterator<String> tokens) {
 		if (tokens.hasNext()) {
 			try {
@@ -0,0 +1,206 @@
+package ce288.fileServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import ce288.metrics.Counter;
+import ce288.metrics.Gauge;
+import ce288.metrics.Metrics;
+
+/**
+ * Cache of the sections compressed with a {@link Deflater}, for the Clients that ask for
+ * compressed transfers, shared by all the {@link FileServerWorker}s.
+ *
+ * A section is compressed whole the first time it is requested, keyed by file, time of
+ * modification, position and length, so the requests repeated by backups and retries, which ask
+ * for the same bytes, are not compressed again. The least recently used sections are dropped
+ * once the compressed bytes exceed the budget.
+ *
+ * A section is read and compressed into a single array on the heap, which is kept whole in the
+ * cache. Only the sections up to {@link #MAX_LENGTH}, and up to {@link #BUDGET_FRACTION} of
+ * the budget, are compressed, so each transfer and each cached section holds a small part of
+ * the budget. Longer sections are sent as they are.
+ */
+public class DeflatedSectionCache {
+
+	/**
+	 * Maximum length of a section sent compressed. Longer ones are sent as they are.
+	 */
+	public static final long MAX_LENGTH = 4 * 1048576;
+
+	/**
+	 * Fraction of the budget, as a divisor, that limits the length of a section sent compressed.
+	 */
+	public static final int BUDGET_FRACTION = 16;
+
+	/**
+	 * Compression level, favouring speed, as the Clients are waiting for the first transfer.
+	 */
+	public static final int LEVEL = Deflater.BEST_SPEED;
+
+	private static final int BUFSIZE = 65536;
+
+	private final long budget;
+
+	/**
+	 * Maximum length of a section compressed with this budget.
+	 */
+	private final long maxLength;
+
+	/**
+	 * Number of compressed bytes cached.
+	 */
+	private long size;
+
+	/**
+	 * The compressed sections, from the least to the most recently used.
+	 */
+	private final LinkedHashMap<SectionKey, byte[]> sections;
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	public DeflatedSectionCache(long budget, Metrics metrics) {
+		this.budget = budget;
+		this.maxLength = Math.min(MAX_LENGTH, budget / BUDGET_FRACTION);
+		this.size = 0;
+		this.sections = new LinkedHashMap<SectionKey, byte[]>(16, 0.75f, true);
+		this.hits = metrics.counter("deflateCacheHits");
+		this.misses = metrics.counter("deflateCacheMisses");
+		metrics.add("deflateCacheBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				synchronized (DeflatedSectionCache.this) {
+					return size;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks whether a section is sent compressed.
+	 *
+	 * @param length
+	 *            the length of the section
+	 * @return true if it is not too long for the budget
+	 */
+	public boolean accepts(long length) {
+		return length <= maxLength;
+	}
+
+	/**
+	 * Gets a section compressed, compressing it if it is not cached.
+	 *
+	 * @param file
+	 *            the file
+	 * @param pos
+	 *            the position of the section
+	 * @param length
+	 *            the length of the section, which must be within the file
+	 * @return the compressed bytes, which must not be modified
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public byte[] get(File file, long pos, long length) throws IOException {
+		SectionKey key = new SectionKey(file.getPath(), file.lastModified(), pos, length);
+		synchronized (this) {
+			byte[] section = sections.get(key);
+			if (section != null) {
+				hits.increment();
+				return section;
+			}
+		}
+		misses.increment();
+		// Compressed without the lock, a section requested twice meanwhile is compressed twice
+		byte[] section = deflate(file, pos, length);
+		synchronized (this) {
+			if (sections.put(key, section) == null) {
+				size += section.length;
+			}
+			evict();
+		}
+		return section;
+	}
+
+	private byte[] deflate(File file, long pos, long length) throws IOException {
+		Deflater deflater = new Deflater(LEVEL);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (length / 4) + 64);
+			DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, BUFSIZE);
+			byte[] buffer = new byte[BUFSIZE];
+			raf.seek(pos);
+			long read = 0;
+			while (read < length) {
+				int n = raf.read(buffer, 0, (int) Math.min(buffer.length, length - read));
+				if (n < 0) {
+					throw new IOException(file.getName() + " was truncated while compressed");
+				}
+				out.write(buffer, 0, n);
+				read += n;
+			}
+			out.finish();
+			return bytes.toByteArray();
+		} finally {
+			raf.close();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Drops the least recently used sections while the budget is exceeded.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<SectionKey, byte[]>> it = sections.entrySet().iterator();
+		while (size > budget && it.hasNext()) {
+			size -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	private static class SectionKey {
+
+		private final String path;
+
+		private final long modified;
+
+		private final long pos;
+
+		private final long length;
+
+		public SectionKey(String path, long modified, long pos, long length) {
+			this.path = path;
+			this.modified = modified;
+			this.pos = pos;
+			this.length = length;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = path.hashCode();
+			hash = hash * 31 + (int) (modified ^ (modified >>> 32));
+			hash = hash * 31 + (int) (pos ^ (pos >>> 32));
+			return hash * 31 + (int) (length ^ (length >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SectionKey)) {
+				return false;
+			}
+			SectionKey other = (SectionKey) obj;
+			return pos == other.pos && length == other.length && modified == other.modified
+					&& path.equals(other.path);
+		}
+
+	}
+
+}
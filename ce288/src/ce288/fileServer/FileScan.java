@@ -0,0 +1,104 @@
+package ce288.fileServer;
+
+import java.util.Collections;
+import java.util.List;
+
+import ce288.tasks.FileFormat;
+
+/**
+ * What the {@link FileScanner} found in a file: its format, its {@link LineIndex}, and the
+ * sections it was cut into, with their number of records and checksums.
+ */
+public class FileScan {
+
+	private final FileFormat format;
+
+	private final LineIndex index;
+
+	private final List<Section> sections;
+
+	private final long records;
+
+	public FileScan(FileFormat format, LineIndex index, List<Section> sections, long records) {
+		this.format = format;
+		this.index = index;
+		this.sections = Collections.unmodifiableList(sections);
+		this.records = records;
+	}
+
+	public FileFormat getFormat() {
+		return format;
+	}
+
+	public LineIndex getIndex() {
+		return index;
+	}
+
+	public List<Section> getSections() {
+		return sections;
+	}
+
+	/**
+	 * Gets the number of records, which are the lines of the file, including the header.
+	 *
+	 * @return the number of records
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * A section of the file, which starts and ends on line boundaries.
+	 */
+	public static class Section {
+
+		private final long position;
+
+		private final long length;
+
+		private final long records;
+
+		private final long checksum;
+
+		public Section(long position, long length, long records, long checksum) {
+			this.position = position;
+			this.length = length;
+			this.records = records;
+			this.checksum = checksum;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Gets the number of lines that start in the section.
+		 *
+		 * @return the number of records
+		 */
+		public long getRecords() {
+			return records;
+		}
+
+		/**
+		 * Gets the CRC-32 of the bytes of the section.
+		 *
+		 * @return the checksum
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d+%d: %d records, crc %08x", position, length, records,
+					checksum);
+		}
+
+	}
+
+}
@@ -0,0 +1,697 @@
+package ce288.fileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.FileFormat;
+import ce288.tasks.FileFormatException;
+
+/**
+ * Preprocesses a file in a single parallel pass, finding its format, its {@link LineIndex}, and
+ * the sections it is cut into, with their number of records and checksums.
+ *
+ * The file is mapped in chunks of {@link #CHUNK_SIZE} bytes, scanned at the same time by the
+ * threads of a {@link ForkJoinPool}. The sections end at the first line start at or after each
+ * multiple of the section size, so each chunk finds the cuts within it without knowing the
+ * others. The chunks are then merged in order by the calling thread, which hands each section
+ * to the {@link Listener} as soon as the chunk where it ends is merged, so its Task can be
+ * processed while the rest of the file is still being scanned.
+ */
+public class FileScanner {
+
+	public static final Logger logger = LoggerFactory.getLogger(FileScanner.class);
+
+	/**
+	 * Number of bytes mapped and scanned by each thread at a time, a multiple of
+	 * {@link LineIndex#INTERVAL}.
+	 */
+	public static final long CHUNK_SIZE = 256L * LineIndex.INTERVAL;
+
+	/**
+	 * Maximum number of bytes read to find the header and the first line of data of a file.
+	 */
+	private static final int MAX_HEAD_LENGTH = 64 * 1048576;
+
+	/**
+	 * Receives the sections of a file in order, from the thread that called
+	 * {@link FileScanner#scan(File, long, Listener)}.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for each section, in order.
+		 */
+		void section(FileFormat format, FileScan.Section section) throws IOException;
+
+		/**
+		 * Called when the file was scanned up to a position, and all the sections before it
+		 * were given.
+		 */
+		void scanned(long position) throws IOException;
+
+	}
+
+	private final ForkJoinPool pool;
+
+	public FileScanner(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Scans a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param sectionSize
+	 *            the number of bytes of each section, before it is extended to the next line
+	 *            start
+	 * @param listener
+	 *            receives the sections as they are found
+	 * @return what was found in the file
+	 * @throws FileFormatException
+	 *             if the format of the file could not be found, before any section is given
+	 * @throws IOException
+	 *             if the file could not be read, or if thrown by the listener
+	 */
+	public FileScan scan(File file, long sectionSize, Listener listener)
+			throws FileFormatException, IOException {
+		long begin = System.currentTimeMillis();
+		long modified = file.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		Scan scan = null;
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length == 0) {
+				throw new FileFormatException("Could not identify file format for file " + file);
+			}
+			int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			scan = new Scan(channel, length, sectionSize, chunks);
+			pool.execute(new ScanAction(scan, 0, chunks));
+			Merger merger = new Merger(length, sectionSize, listener);
+			for (int i = 0; i < chunks; i++) {
+				Chunk chunk = scan.await(i);
+				if (i == 0 && chunk.format == null) {
+					throw new FileFormatException("Could not identify file format for file "
+							+ file);
+				}
+				merger.merge(chunk);
+			}
+			FileScan result = merger.finish(file, modified);
+			logger.info("Scanned {} in {} ms with {} threads: {} records in {} sections.", file,
+					System.currentTimeMillis() - begin, pool.getParallelism(),
+					result.getRecords(), result.getSections().size());
+			return result;
+		} finally {
+			if (scan != null) {
+				scan.cancel();
+			}
+			raf.close();
+		}
+	}
+
+	/**
+	 * Finds the format of a file from its first lines, reading more than the first block while
+	 * the header and the first line of data are not complete, up to {@link #MAX_HEAD_LENGTH}.
+	 *
+	 * @param channel
+	 *            the file
+	 * @param length
+	 *            the length of the file
+	 * @return the format, or null if it could not be found
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	static FileFormat detectFormat(FileChannel channel, long length) throws IOException {
+		byte[] bytes = new byte[(int) Math.min(length, LineIndex.INTERVAL)];
+		int n = 0;
+		while (true) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			buffer.position(n);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0) {
+					break;
+				}
+			}
+			n = buffer.position();
+			boolean last = n >= length || buffer.hasRemaining();
+			if (last || hasDataLine(bytes, n) || bytes.length >= MAX_HEAD_LENGTH) {
+				return detectFormat(bytes, n, last);
+			}
+			bytes = Arrays.copyOf(bytes, (int) Math.min(Math.min(length, MAX_HEAD_LENGTH),
+					2L * bytes.length));
+		}
+	}
+
+	/**
+	 * Checks whether the bytes hold the whole header and the first line of data.
+	 */
+	private static boolean hasDataLine(byte[] bytes, int length) {
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && bytes[end] != '\n') {
+				end++;
+			}
+			if (end == length) {
+				return false;
+			}
+			int lineEnd = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+			if (!FileServer.isHeader(new String(bytes, start, lineEnd - start))) {
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the format of a file from its first lines, which are the header and the first line
+	 * of data.
+	 *
+	 * @param last
+	 *            whether the bytes end the file, so the last line needs no terminator
+	 * @return the format, or null if it could not be found in the bytes
+	 */
+	static FileFormat detectFormat(byte[] bytes, int length, boolean last) {
+		int start = 0;
+		boolean isHeader;
+		do {
+			int end = start;
+			while (end < length && bytes[end] != '\n') {
+				end++;
+			}
+			if (end == length && !last) {
+				// The line may continue after the bytes
+				return null;
+			}
+			int lineEnd = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+			String headline = new String(bytes, start, lineEnd - start);
+			isHeader = FileServer.isHeader(headline);
+			for (FileFormat format : FileFormat.values()) {
+				if (headline.indexOf(format.getMark()) > 0) {
+					logger.info("File format is: {}", format);
+					return format;
+				}
+			}
+			start = end + 1;
+		} while (isHeader && start < length);
+		return null;
+	}
+
+	/**
+	 * Combines the CRC-32 of two sequences of bytes into the CRC-32 of the second one appended
+	 * to the first, as crc32_combine() of zlib.
+	 *
+	 * @param crc1
+	 *            the CRC-32 of the first sequence
+	 * @param crc2
+	 *            the CRC-32 of the second sequence
+	 * @param length2
+	 *            the length of the second sequence
+	 * @return the CRC-32 of both
+	 */
+	static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		// The operator for one zero bit
+		odd[0] = 0xEDB88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		// The operators for two and four zero bits
+		square(even, odd);
+		square(odd, even);
+		// Applies length2 zero bytes to crc1
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * A run of bytes of a chunk between two possible ends of section.
+	 */
+	private static class Segment {
+
+		private final long start;
+
+		private final long length;
+
+		private final long records;
+
+		private final long checksum;
+
+		public Segment(long start, long length, long records, long checksum) {
+			this.start = start;
+			this.length = length;
+			this.records = records;
+			this.checksum = checksum;
+		}
+
+	}
+
+	/**
+	 * What was found in a chunk of the file.
+	 */
+	private static class Chunk {
+
+		private final long start;
+
+		private final long end;
+
+		/**
+		 * The format, found only in the first chunk, or null.
+		 */
+		private FileFormat format;
+
+		/**
+		 * The first line start in the chunk, or -1 if it is in the middle of a line.
+		 */
+		private long firstLineStart = -1;
+
+		/**
+		 * The ends of section found in the chunk.
+		 */
+		private final List<Long> cuts = new ArrayList<Long>();
+
+		/**
+		 * Whether some multiple of the section size in the chunk has no line start after it in
+		 * the chunk, so its section ends at the first line start of a later chunk.
+		 */
+		private boolean pending;
+
+		/**
+		 * The runs of bytes between the first line start and the cuts, covering the chunk.
+		 */
+		private final List<Segment> segments = new ArrayList<Segment>();
+
+		/**
+		 * The first line start at or after each block of the chunk, or -1 if it is in a later
+		 * chunk.
+		 */
+		private final long[] entries;
+
+		private boolean endsWithNewline;
+
+		public Chunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.entries = new long[(int) ((end - start + LineIndex.INTERVAL - 1)
+					/ LineIndex.INTERVAL)];
+		}
+
+	}
+
+	/**
+	 * The state of a scan, shared by its threads.
+	 */
+	private static class Scan {
+
+		private final FileChannel channel;
+
+		private final long length;
+
+		private final long sectionSize;
+
+		private final Chunk[] chunks;
+
+		private IOException failure;
+
+		private volatile boolean cancelled;
+
+		public Scan(FileChannel channel, long length, long sectionSize, int chunks) {
+			this.channel = channel;
+			this.length = length;
+			this.sectionSize = sectionSize;
+			this.chunks = new Chunk[chunks];
+		}
+
+		synchronized void done(int index, Chunk chunk) {
+			chunks[index] = chunk;
+			notifyAll();
+		}
+
+		synchronized void failed(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Waits until a chunk is scanned, and takes it.
+		 */
+		synchronized Chunk await(int index) throws IOException {
+			while (chunks[index] == null) {
+				if (failure != null) {
+					throw new IOException("Could not scan file", failure);
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while scanning file", e);
+				}
+			}
+			Chunk chunk = chunks[index];
+			chunks[index] = null;
+			return chunk;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+
+	}
+
+	/**
+	 * Scans a range of chunks, split in halves down to single chunks.
+	 */
+	private static class ScanAction extends RecursiveAction {
+
+		private static final long serialVersionUID = -4316023645893384911L;
+
+		private final Scan scan;
+
+		private final int from;
+
+		private final int to;
+
+		public ScanAction(Scan scan, int from, int to) {
+			this.scan = scan;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScanAction(scan, from, middle), new ScanAction(scan, middle, to));
+			} else if (to > from && !scan.cancelled) {
+				try {
+					scan.done(from, scanChunk(scan, from));
+				} catch (IOException e) {
+					scan.failed(e);
+				} catch (RuntimeException e) {
+					// The merging thread waits for every chunk, it must hear of any failure
+					scan.failed(new IOException(e));
+					throw e;
+				}
+			}
+		}
+
+	}
+
+	private static Chunk scanChunk(Scan scan, int index) throws IOException {
+		long start = index * CHUNK_SIZE;
+		long end = Math.min(scan.length, start + CHUNK_SIZE);
+		Chunk chunk = new Chunk(start, end);
+		MappedByteBuffer map = scan.channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		ChunkScanner scanner = new ChunkScanner(chunk, scan.sectionSize);
+		if (start == 0) {
+			// The header and the first line of data may not fit in the first block
+			chunk.format = detectFormat(scan.channel, scan.length);
+			scanner.lineStart(0);
+		} else {
+			ByteBuffer previous = ByteBuffer.allocate(1);
+			scan.channel.read(previous, start - 1);
+			if (previous.get(0) == '\n') {
+				scanner.lineStart(start);
+			}
+		}
+		byte[] buffer = new byte[LineIndex.INTERVAL];
+		for (long blockStart = start; blockStart < end; blockStart += LineIndex.INTERVAL) {
+			int n = (int) Math.min(LineIndex.INTERVAL, end - blockStart);
+			map.get(buffer, 0, n);
+			scanner.scan(buffer, n, blockStart);
+			if (blockStart + n == end) {
+				chunk.endsWithNewline = buffer[n - 1] == '\n';
+			}
+		}
+		scanner.finish();
+		return chunk;
+	}
+
+	/**
+	 * Finds the line starts, the cuts and the segments of a chunk.
+	 */
+	private static class ChunkScanner {
+
+		private final Chunk chunk;
+
+		private final long sectionSize;
+
+		private final long firstBlock;
+
+		private int nextEntry;
+
+		/**
+		 * The first multiple of the section size, after 0, without a cut.
+		 */
+		private long nextTarget;
+
+		private long segmentStart;
+
+		private long segmentRecords;
+
+		private final CRC32 crc;
+
+		public ChunkScanner(Chunk chunk, long sectionSize) {
+			this.chunk = chunk;
+			this.sectionSize = sectionSize;
+			this.firstBlock = chunk.start / LineIndex.INTERVAL;
+			this.nextEntry = 0;
+			this.nextTarget = Math.max(sectionSize, (chunk.start + sectionSize - 1) / sectionSize
+					* sectionSize);
+			this.segmentStart = chunk.start;
+			this.segmentRecords = 0;
+			this.crc = new CRC32();
+		}
+
+		/**
+		 * Handles a line start in the chunk.
+		 *
+		 * @return true if it starts a segment
+		 */
+		boolean lineStart(long position) {
+			while (nextEntry < chunk.entries.length
+					&& (firstBlock + nextEntry) * LineIndex.INTERVAL <= position) {
+				chunk.entries[nextEntry++] = position;
+			}
+			boolean boundary = false;
+			if (chunk.firstLineStart < 0) {
+				chunk.firstLineStart = position;
+				boundary = true;
+			}
+			if (nextTarget <= position) {
+				chunk.cuts.add(position);
+				while (nextTarget <= position) {
+					nextTarget += sectionSize;
+				}
+				boundary = true;
+			}
+			return boundary;
+		}
+
+		void scan(byte[] buffer, int n, long blockStart) {
+			int from = 0;
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] == '\n') {
+					segmentRecords++;
+					long position = blockStart + i + 1;
+					// A line start at the end of the chunk is found by the next one
+					if (position < chunk.end && lineStart(position)) {
+						crc.update(buffer, from, i + 1 - from);
+						from = i + 1;
+						endSegment(position);
+					}
+				}
+			}
+			crc.update(buffer, from, n - from);
+		}
+
+		void finish() {
+			endSegment(chunk.end);
+			while (nextEntry < chunk.entries.length) {
+				chunk.entries[nextEntry++] = -1;
+			}
+			chunk.pending = nextTarget < chunk.end;
+		}
+
+		private void endSegment(long position) {
+			if (position > segmentStart) {
+				chunk.segments.add(new Segment(segmentStart, position - segmentStart,
+						segmentRecords, crc.getValue()));
+			}
+			segmentStart = position;
+			segmentRecords = 0;
+			crc.reset();
+		}
+
+	}
+
+	/**
+	 * Joins the chunks, in order, into the sections and the line index.
+	 */
+	private static class Merger {
+
+		private final long length;
+
+		private final Listener listener;
+
+		private final List<FileScan.Section> sections;
+
+		private final long[] entries;
+
+		/**
+		 * The entries waiting for a line start of a later chunk.
+		 */
+		private final List<Integer> unresolved;
+
+		private FileFormat format;
+
+		/**
+		 * Whether the current section ends at the next line start.
+		 */
+		private boolean pending;
+
+		private long sectionStart;
+
+		private long sectionRecords;
+
+		private long sectionChecksum;
+
+		private long records;
+
+		private boolean endsWithNewline;
+
+		public Merger(long length, long sectionSize, Listener listener) {
+			this.length = length;
+			this.listener = listener;
+			this.sections = new ArrayList<FileScan.Section>();
+			this.entries = new long[(int) ((length + LineIndex.INTERVAL - 1)
+					/ LineIndex.INTERVAL)];
+			this.unresolved = new ArrayList<Integer>();
+			this.pending = false;
+			this.sectionStart = 0;
+			this.sectionRecords = 0;
+			this.sectionChecksum = 0;
+			this.records = 0;
+		}
+
+		void merge(Chunk chunk) throws IOException {
+			if (format == null) {
+				format = chunk.format;
+			}
+			List<Long> cuts = chunk.cuts;
+			if (chunk.firstLineStart >= 0) {
+				for (int entry : unresolved) {
+					entries[entry] = chunk.firstLineStart;
+				}
+				unresolved.clear();
+				if (pending) {
+					cuts = new ArrayList<Long>(cuts);
+					if (cuts.isEmpty() || cuts.get(0) != chunk.firstLineStart) {
+						cuts.add(0, chunk.firstLineStart);
+					}
+					pending = false;
+				}
+			}
+			int firstEntry = (int) (chunk.start / LineIndex.INTERVAL);
+			for (int i = 0; i < chunk.entries.length; i++) {
+				entries[firstEntry + i] = chunk.entries[i];
+				if (chunk.entries[i] < 0) {
+					unresolved.add(firstEntry + i);
+				}
+			}
+			int next = 0;
+			for (Segment segment : chunk.segments) {
+				if (next < cuts.size() && cuts.get(next) == segment.start) {
+					endSection(segment.start);
+					next++;
+				}
+				sectionChecksum = combine(sectionChecksum, segment.checksum, segment.length);
+				sectionRecords += segment.records;
+			}
+			pending = pending || chunk.pending;
+			endsWithNewline = chunk.endsWithNewline;
+			listener.scanned(chunk.end);
+		}
+
+		FileScan finish(File file, long modified) throws IOException {
+			if (length > 0 && !endsWithNewline) {
+				// The last line has no terminator
+				sectionRecords++;
+			}
+			endSection(length);
+			for (int entry : unresolved) {
+				entries[entry] = length;
+			}
+			listener.scanned(length);
+			return new FileScan(format, new LineIndex(file, length, modified, entries), sections,
+					records);
+		}
+
+		private void endSection(long position) throws IOException {
+			if (position > sectionStart) {
+				FileScan.Section section = new FileScan.Section(sectionStart, position
+						- sectionStart, sectionRecords, sectionChecksum);
+				sections.add(section);
+				records += sectionRecords;
+				listener.section(format, section);
+			}
+			sectionStart = position;
+			sectionRecords = 0;
+			sectionChecksum = 0;
+		}
+
+	}
+
+}
@@ -1,34 +1,46 @@
 package ce288.fileServer;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ce288.client.Client;
+import ce288.metrics.Metrics;
 import ce288.server.Server;
 import ce288.tasks.FileFormat;
 import ce288.tasks.FileFormatException;
 import ce288.tasks.Result.ResultLog;
+import ce288.tasks.ResultPage;
 import ce288.tasks.Task;
+import ce288.tasks.TaskBatch;
+import ce288.tasks.TaskQueue;
 import ce288.tasks.TaskRepository;
 import ce288.tasks.TaskRepositoryInterface;
+import ce288.tasks.TaskRepositoryLocator;
 import ce288.tasks.TaskStatus;
 
 public class FileServer {
@@ -40,12 +52,50 @@ public class FileServer {
 	 */
 	public static final long DEFAULT_SECTION_SIZE = 10485760;
 
+	/**
+	 * Section size that makes {@link #addFile(String, long, int)} choose it with
+	 * {@link #chooseSectionSize(long)}.
+	 */
+	public static final long AUTO_SECTION_SIZE = 0;
+
+	/**
+	 * Bounds of the section size chosen automatically, 1MB and 256MB.
+	 */
+	public static final long MIN_SECTION_SIZE = 1048576;
+	public static final long MAX_SECTION_SIZE = 268435456;
+
+	/**
+	 * Time a {@link Client} should take to process a section chosen
+	 * automatically, in milliseconds. Longer Tasks balance the load worse,
+	 * shorter ones spend more time in the requests.
+	 */
+	public static final long TARGET_TASK_DURATION = 30000;
+
+	/**
+	 * Minimum number of Tasks per active {@link Client} a file is split into
+	 * when the section size is chosen automatically, so the Clients that
+	 * finish first can take over the work of the slower ones.
+	 */
+	public static final int TASKS_PER_CLIENT = 4;
+
 	/**
 	 * Network port where this process will listen to {@link Client} connection
 	 * requests.
 	 */
 	public static final int PORT = 12345;
 
+	/**
+	 * Maximum number of {@link Task}s sent to the {@link TaskRepository} in a
+	 * single call.
+	 */
+	public static final int ADD_BATCH_SIZE = 1000;
+
+	/**
+	 * Number of {@link ResultLog}s read from the {@link TaskRepository} at a
+	 * time while printing the results.
+	 */
+	public static final int RESULT_PAGE_SIZE = 10000;
+
 	/**
 	 * IP address of this {@link FileServer}, which the {@link Client} instances
 	 * will connect to.
@@ -69,6 +119,39 @@ public class FileServer {
 	 */
 	private HashMap<String, List<UUID>> tasks;
 
+	/**
+	 * Metrics of the sections sent to the {@link Client} instances.
+	 */
+	private Metrics metrics;
+
+	/**
+	 * The {@link LineIndex} of each file, loaded by {@link #addFile(String)}
+	 * or by the first request of one of its sections. An index is loaded by
+	 * the thread that inserts its future, so the requests of the other files
+	 * do not wait for it.
+	 * 
+	 * The key is {@link Task#getFilename()}.
+	 */
+	private ConcurrentMap<String, FutureTask<LineIndex>> indexes;
+
+	/**
+	 * What {@link #addFile(String, long, int)} found in each file.
+	 * 
+	 * The key is {@link Task#getFilename()}.
+	 */
+	private Map<String, FileScan> scans;
+
+	/**
+	 * The files being scanned by {@link #addFile(String, long, int)}, whose
+	 * sections are aligned without an index until the scan ends.
+	 */
+	private Set<String> scanning;
+
+	/**
+	 * Scans the files added, on all the processors.
+	 */
+	private FileScanner scanner;
+
 	/**
 	 * Creates a FileServer instance.
 	 * 
@@ -81,14 +164,19 @@ public class FileServer {
 	public FileServer(String path, String addr) {
 		logger.info("File server started.");
 		tasks = new HashMap<>();
+		indexes = new ConcurrentHashMap<>();
+		scans = new HashMap<>();
+		scanning = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		scanner = new FileScanner(new ForkJoinPool());
 		setPath(path);
+		metrics = new Metrics();
+		metrics.register("FileServer", null);
 		Thread fileServerThread = new Thread(new FileServerThread(this));
 		fileServerThread.setDaemon(true);
 		fileServerThread.start();
 
 		try {
-			Registry registry = LocateRegistry.getRegistry();
-			stub = (TaskRepositoryInterface) registry.lookup("TaskRepository");
+			stub = TaskRepositoryLocator.locate(null);
 		} catch (IOException | NotBoundException e) {
 			logger.error(e.getMessage(), e);
 		}
@@ -179,23 +267,36 @@ public class FileServer {
 		if (!tasks.containsKey(filename)) {
 			throw new FileNotFoundException("There are no tasks for file " + filename);
 		}
-		List<ResultLog> resultLogs = stub.getResult(tasks.get(filename));
+		UUID cursorId = stub.openResultCursor(tasks.get(filename));
 
 		PrintStream out;
 		if (outputPath != null) {
-			out = new PrintStream(outputPath);
+			out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputPath)));
 		} else {
 			out = System.out;
 		}
 
-		out.println("offset\tmessage");
-		for (ResultLog result : resultLogs) {
-			out.printf("%d\t%s\n", result.getPos(), result.getMsg());
-		}
-		out.println("<<EOF>>");
-
-		if (outputPath != null) {
-			out.close();
+		boolean finished = false;
+		try {
+			out.println("offset\tmessage");
+			ResultPage page;
+			do {
+				page = stub.nextResultPage(cursorId, RESULT_PAGE_SIZE);
+				for (ResultLog result : page.getLogs()) {
+					out.printf("%d\t%s\n", result.getPos(), result.getMsg());
+				}
+			} while (!page.isLast());
+			out.println("<<EOF>>");
+			finished = true;
+		} finally {
+			if (!finished) {
+				stub.closeResultCursor(cursorId);
+			}
+			if (outputPath != null) {
+				out.close();
+			} else {
+				out.flush();
+			}
 		}
 
 		tasks.remove(filename);
@@ -243,6 +344,41 @@ public class FileServer {
 	 */
 	public void addFile(String filename, long sectionSize) throws FileNotFoundException,
 			FileFormatException, RemoteException, IOException {
+		addFile(filename, sectionSize, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Create the tasks to process the file, which will share the {@link Client}
+	 * instances with the other files according to its priority.
+	 * 
+	 * The file is scanned in parallel by the {@link FileScanner}, which finds
+	 * its format, its {@link LineIndex} and the sections, and the tasks are
+	 * sent to the {@link TaskRepository} as the scan goes, so the Clients
+	 * start on the beginning of a large file before its end is read. The
+	 * sections start and end on line boundaries, each one ending at the first
+	 * line start at or after a multiple of the section size.
+	 * 
+	 * @param filename
+	 *            the filename without path, which is located in the folder
+	 *            {@link #path}
+	 * @param sectionSize
+	 *            the number of bytes to be processed by each task, or
+	 *            {@link #AUTO_SECTION_SIZE} to choose it from the size of
+	 *            the file and the state of the {@link TaskRepository}
+	 * @param priority
+	 *            the weight of the file, at least 1
+	 * @throws FileNotFoundException
+	 *             if the filename is not found in {@link #path}
+	 * @throws FileFormatException
+	 *             if the file is not one of the types defined by
+	 *             {@link FileFormat}
+	 * @throws RemoteException
+	 *             if could not connect to remote {@link TaskRepository}
+	 * @throws IOException
+	 *             if could not read file
+	 */
+	public void addFile(final String filename, long sectionSize, final int priority)
+			throws FileNotFoundException, FileFormatException, RemoteException, IOException {
 		String fullPath = this.path + File.separator + filename;
 		File file = new File(fullPath);
 		long size = file.length();
@@ -251,22 +387,190 @@ public class FileServer {
 			tasks.remove(filename);
 		}
 
-		FileFormat format = preprocess(fullPath);
-		for (long pos = 0; pos < size; pos += sectionSize) {
-			long length = Math.min(sectionSize, size - pos);
-			Task task = new Task(format, address, filename, pos, length);
-			stub.addTask(task);
-			if (tasks.containsKey(filename)) {
-				tasks.get(filename).add(task.getId());
-			} else {
-				List<UUID> ids = new ArrayList<UUID>();
-				ids.add(task.getId());
-				tasks.put(filename, ids);
+		if (sectionSize <= AUTO_SECTION_SIZE) {
+			sectionSize = chooseSectionSize(size);
+			logger.info("Chose sections of {} bytes for file {}.", sectionSize, filename);
+		}
+		// The ids are recorded before the scan, so the results of the Tasks
+		// already added can be read even if the scan fails
+		final List<UUID> ids = new ArrayList<UUID>();
+		tasks.put(filename, ids);
+		scanning.add(filename);
+		FileScan scan = null;
+		try {
+			scan = scanner.scan(file, sectionSize, new FileScanner.Listener() {
+
+				private List<Task> batch = new TaskBatch();
+
+				@Override
+				public void section(FileFormat format, FileScan.Section section)
+						throws IOException {
+					Task task = new Task(format, address, filename, section.getPosition(),
+							section.getLength());
+					batch.add(task);
+					logger.debug("Added task {} for file {}.", task.getId(), filename);
+					if (batch.size() == ADD_BATCH_SIZE) {
+						scanned(section.getPosition() + section.getLength());
+					}
+				}
+
+				@Override
+				public void scanned(long position) throws IOException {
+					// The Clients can start on the sections found so far
+					if (!batch.isEmpty()) {
+						stub.addTasks(batch, priority);
+						for (Task task : batch) {
+							ids.add(task.getId());
+						}
+						batch = new TaskBatch();
+					}
+				}
+
+			});
+		} finally {
+			scanning.remove(filename);
+			if (scan == null && ids.isEmpty()) {
+				tasks.remove(filename);
+			}
+		}
+		final LineIndex index = scan.getIndex();
+		FutureTask<LineIndex> loaded = new FutureTask<LineIndex>(new Callable<LineIndex>() {
+
+			@Override
+			public LineIndex call() {
+				return index;
+			}
+
+		});
+		loaded.run();
+		indexes.put(filename, loaded);
+		try {
+			index.save();
+		} catch (IOException e) {
+			// The index is still used, it is only built again next time
+			logger.warn("Could not write line index of {}: {}", filename, e.getMessage());
+		}
+		scans.put(filename, scan);
+		logger.info("Added {} tasks for file {}.", ids.size(), filename);
+	}
+
+	/**
+	 * Gets what {@link #addFile(String, long, int)} found in a file.
+	 * 
+	 * @param filename
+	 *            the filename without path, which is located in the folder
+	 *            {@link #path}
+	 * @return the scan, or null if the file was not added
+	 */
+	public FileScan getScan(String filename) {
+		return scans.get(filename);
+	}
+
+	/**
+	 * Gets the {@link LineIndex} of a file, loading it if it was not loaded
+	 * yet or if the file changed since. While the file is scanned by
+	 * {@link #addFile(String, long, int)}, which builds its index, the index
+	 * has no entries and reads the file to find the line starts.
+	 * 
+	 * @param filename
+	 *            the filename without path, which is located in the folder
+	 *            {@link #path}
+	 * @return the index
+	 * @throws IOException
+	 *             if could not read file
+	 */
+	public LineIndex getLineIndex(String filename) throws IOException {
+		final File file = new File(getPath() + File.separator + filename);
+		if (scanning.contains(filename)) {
+			return LineIndex.unindexed(file);
+		}
+		while (true) {
+			FutureTask<LineIndex> future = indexes.get(filename);
+			boolean loading = false;
+			if (future == null) {
+				FutureTask<LineIndex> created = new FutureTask<LineIndex>(
+						new Callable<LineIndex>() {
+
+							@Override
+							public LineIndex call() throws IOException {
+								return LineIndex.load(file);
+							}
+
+						});
+				future = indexes.putIfAbsent(filename, created);
+				if (future == null) {
+					// Loaded by this thread, the others wait only for this file
+					future = created;
+					loading = true;
+					created.run();
+				}
+			}
+			LineIndex index;
+			try {
+				index = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading line index of "
+						+ filename);
+			} catch (ExecutionException e) {
+				// Loaded again by the next request
+				indexes.remove(filename, future);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			// An index just loaded is used even if the file changed meanwhile
+			if (loading || index.isCurrent()) {
+				return index;
 			}
-			logger.debug("Added task {} for file {}.", task.getId(), filename);
+			indexes.remove(filename, future);
 		}
 	}
 
+	/**
+	 * Chooses the section size of a file from the number of active
+	 * {@link Client} instances and the rate at which they process the files,
+	 * as measured by the {@link TaskRepository}.
+	 * 
+	 * The section is the amount a Client processes in
+	 * {@link #TARGET_TASK_DURATION}, reduced so there are at least
+	 * {@link #TASKS_PER_CLIENT} Tasks per Client, within
+	 * {@link #MIN_SECTION_SIZE} and {@link #MAX_SECTION_SIZE}. While there is
+	 * no measure of the rate, {@link #DEFAULT_SECTION_SIZE} is taken as the
+	 * amount processed in the target time.
+	 * 
+	 * @param size
+	 *            the size of the file
+	 * @return the section size
+	 * @throws RemoteException
+	 *             if could not connect to remote {@link TaskRepository}
+	 */
+	public long chooseSectionSize(long size) throws RemoteException {
+		long clients = 0;
+		long throughput = 0;
+		// The keys of a sharded repository are prefixed by the shard, whose
+		// Clients are shared
+		for (Map.Entry<String, Long> entry : stub.getStatistics().entrySet()) {
+			if (entry.getKey().endsWith(TaskRepository.ACTIVE_CLIENTS)) {
+				clients = Math.max(clients, entry.getValue());
+			} else if (entry.getKey().endsWith(TaskRepository.CLIENT_THROUGHPUT)) {
+				throughput = Math.max(throughput, entry.getValue());
+			}
+		}
+		long sectionSize = DEFAULT_SECTION_SIZE;
+		if (throughput > 0) {
+			sectionSize = throughput * TARGET_TASK_DURATION / 1000;
+		}
+		if (clients > 0) {
+			long count = clients * TASKS_PER_CLIENT;
+			sectionSize = Math.min(sectionSize, (size + count - 1) / count);
+		}
+		sectionSize = Math.max(MIN_SECTION_SIZE, Math.min(sectionSize, MAX_SECTION_SIZE));
+		logger.debug("{} active clients at {} bytes/s.", clients, throughput);
+		return sectionSize;
+	}
+
 	/**
 	 * Retrieve the current status of the {@link Task} from the remote
 	 * {@link TaskRepository}.
@@ -283,42 +587,32 @@ public class FileServer {
 	}
 
 	/**
-	 * Gets the {@link FileServer#tasks}.
+	 * Retrieve the current values of the metrics of the remote {@link TaskRepository}.
 	 * 
-	 * @return the {@link FileServer#tasks}
+	 * @return the values by name
+	 * @throws RemoteException
+	 *             if the remote service could not be contacted
 	 */
-	public Map<String, List<UUID>> getTasks() {
-		return tasks;
+	public Map<String, Long> getStatistics() throws RemoteException {
+		return stub.getStatistics();
 	}
 
 	/**
-	 * Read the first lines of the file to determine the file type.
+	 * Gets the metrics of this {@link FileServer}.
 	 * 
-	 * @param filename
-	 *            the file to be processed
-	 * @return one of the {@link FileFormat} values
-	 * @throws FileFormatException
-	 *             if could not define the format
-	 * @throws IOException
-	 *             if could not read the file
-	 */
-	private FileFormat preprocess(String filename) throws FileFormatException, IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(filename));
-		boolean isHeader = false;
-		do {
-			String headline = reader.readLine();
-			isHeader = isHeader(headline);
-			for (FileFormat format : FileFormat.values()) {
-				if (headline.indexOf(format.getMark()) > 0) {
-					reader.close();
-					logger.info("File format is: {}", format);
-					return format;
-				}
-			}
-		} while (isHeader);
-		reader.close();
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
 
-		throw new FileFormatException("Could not identify file format for file " + filename);
+	/**
+	 * Gets the {@link FileServer#tasks}.
+	 * 
+	 * @return the {@link FileServer#tasks}
+	 */
+	public Map<String, List<UUID>> getTasks() {
+		return tasks;
 	}
 
 	/**
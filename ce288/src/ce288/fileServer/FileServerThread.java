@@ -1,37 +1,408 @@
 package ce288.fileServer;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.Executor;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ce288.metrics.Gauge;
+
+/**
+ * Accepts the connections of the {@link ce288.client.Client}s and serves their requests with a
+ * bounded number of {@link FileServerWorker}s.
+ *
+ * The connections are persistent: a Client keeps one open and sends its requests through it,
+ * several at a time. A single thread accepts the connections and reads the requests with a
+ * selector, so an idle connection does not hold a thread. The complete requests of a connection
+ * are handed to one of the {@link #MAX_TRANSFERS_PROPERTY} transfer threads, or wait in a FIFO
+ * queue until one is free, and the connection goes back to the selector once they are served.
+ * A connection whose requests are not served within {@link #QUEUE_TIMEOUT_PROPERTY}
+ * milliseconds, or that has no request for {@link #IDLE_TIMEOUT} milliseconds, is closed, and no
+ * more connections are accepted while {@link #MAX_CONNECTIONS_PROPERTY} of them are open, so a
+ * burst of Clients waits in the backlog of the listening socket instead of using file
+ * descriptors.
+ */
 public class FileServerThread implements Runnable {
 
 	public static final Logger logger = LoggerFactory.getLogger(FileServerThread.class);
 
+	/**
+	 * Maximum number of copy buffers kept for reuse by the workers.
+	 */
+	public static final int BUFFER_POOL_SIZE = 64;
+
+	/**
+	 * System property with the maximum number of sections sent at the same time.
+	 */
+	public static final String MAX_TRANSFERS_PROPERTY = "ce288.fileServer.maxTransfers";
+
+	/**
+	 * System property with the maximum number of open connections.
+	 */
+	public static final String MAX_CONNECTIONS_PROPERTY = "ce288.fileServer.maxConnections";
+
+	/**
+	 * System property with the number of bytes of the files kept mapped by the
+	 * {@link RegionCache}. The cache is off by default, and the sections are sent with
+	 * {@link java.nio.channels.FileChannel#transferTo}, which copies them from the page cache
+	 * to the socket without passing through the JVM.
+	 */
+	public static final String CACHE_SIZE_PROPERTY = "ce288.fileServer.cacheSize";
+
+	/**
+	 * System property with the number of bytes of compressed sections kept by the
+	 * {@link DeflatedSectionCache}.
+	 */
+	public static final String DEFLATE_CACHE_SIZE_PROPERTY = "ce288.fileServer.deflateCacheSize";
+
+	/**
+	 * System property with the time, in milliseconds, the requests of a connection may wait for
+	 * a transfer thread.
+	 */
+	public static final String QUEUE_TIMEOUT_PROPERTY = "ce288.fileServer.queueTimeout";
+
+	public static final int DEFAULT_MAX_TRANSFERS = 16;
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+	public static final long DEFAULT_QUEUE_TIMEOUT = 60000;
+
+	public static final long DEFAULT_CACHE_SIZE = 0;
+
+	public static final long DEFAULT_DEFLATE_CACHE_SIZE = 64 * 1048576L;
+
+	/**
+	 * Time, in milliseconds, after which a connection without requests is closed.
+	 */
+	public static final long IDLE_TIMEOUT = 300000;
+
+	/**
+	 * Maximum time between two checks of the timeouts.
+	 */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/**
+	 * Time, in milliseconds, the connections are not accepted after a failure to accept one, so
+	 * the selector does not spin while the file descriptors are exhausted.
+	 */
+	private static final long ACCEPT_RETRY_DELAY = 100;
+
 	private FileServer parent;
 
+	private TransferMetrics metrics;
+
+	private BufferPool buffers;
+
+	private RegionCache cache;
+
+	private DeflatedSectionCache deflated;
+
+	private final int maxTransfers;
+
+	private final int maxConnections;
+
+	private final long queueTimeout;
+
+	private Selector selector;
+
+	/**
+	 * The connections registered with the selector, without complete requests.
+	 */
+	private final Set<FileServerWorker> idle;
+
+	/**
+	 * The connections with complete requests waiting for a transfer thread, in arrival order.
+	 */
+	private final Deque<FileServerWorker> waiting;
+
+	/**
+	 * Number of connections being served by the transfer threads.
+	 */
+	private volatile int active;
+
+	/**
+	 * Number of open connections.
+	 */
+	private volatile int connections;
+
+	/**
+	 * Number of connections waiting for a transfer thread, updated by the selector thread for
+	 * the metrics.
+	 */
+	private volatile int queued;
+
+	/**
+	 * Time until which no connection is accepted, after a failure to accept one.
+	 */
+	private long acceptPausedUntil;
+
+	/**
+	 * The workers that finished, reported by the transfer threads to the selector thread.
+	 */
+	private final Queue<FileServerWorker> finished;
+
 	public FileServerThread(FileServer parent) {
 		this.parent = parent;
+		this.metrics = new TransferMetrics(parent.getMetrics());
+		this.buffers = new BufferPool(FileServerWorker.BUFSIZE, BUFFER_POOL_SIZE);
+		this.maxTransfers = Math.max(1, Integer.getInteger(MAX_TRANSFERS_PROPERTY,
+				DEFAULT_MAX_TRANSFERS));
+		this.maxConnections = Math.max(1, Integer.getInteger(MAX_CONNECTIONS_PROPERTY,
+				DEFAULT_MAX_CONNECTIONS));
+		this.queueTimeout = Long.getLong(QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT);
+		long cacheSize = Long.getLong(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+		this.cache = cacheSize > 0 ? new RegionCache(cacheSize, parent.getMetrics()) : null;
+		this.deflated = new DeflatedSectionCache(Long.getLong(DEFLATE_CACHE_SIZE_PROPERTY,
+				DEFAULT_DEFLATE_CACHE_SIZE), parent.getMetrics());
+		this.idle = new HashSet<FileServerWorker>();
+		this.waiting = new ArrayDeque<FileServerWorker>();
+		this.active = 0;
+		this.connections = 0;
+		this.queued = 0;
+		this.acceptPausedUntil = 0;
+		this.finished = new ConcurrentLinkedQueue<FileServerWorker>();
+		parent.getMetrics().add("transfersActive", new Gauge() {
+			@Override
+			public long getValue() {
+				return active;
+			}
+		});
+		parent.getMetrics().add("transfersQueued", new Gauge() {
+			@Override
+			public long getValue() {
+				return queued;
+			}
+		});
+		parent.getMetrics().add("connections", new Gauge() {
+			@Override
+			public long getValue() {
+				return connections;
+			}
+		});
 	}
 
 	@Override
 	public void run() {
-		Executor executor = Executors.newCachedThreadPool();
+		ExecutorService executor = Executors.newFixedThreadPool(maxTransfers);
 		try {
-			@SuppressWarnings("resource")
-			ServerSocket serverSocket = new ServerSocket(FileServer.PORT);
+			selector = Selector.open();
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().bind(new InetSocketAddress(FileServer.PORT));
+			SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			logger.info("Serving up to {} transfers, with up to {} connections.", maxTransfers,
+					maxConnections);
 			while (true) {
-				Socket socket = serverSocket.accept();
-				logger.info("Received connection from {}.", socket.getInetAddress());
-				executor.execute(new FileServerWorker(socket, parent.getPath()));
+				selector.select(SELECT_TIMEOUT);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(serverChannel);
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+				FileServerWorker worker;
+				while ((worker = finished.poll()) != null) {
+					active--;
+					resume(worker);
+				}
+				expire();
+				dispatch(executor);
+				queued = waiting.size();
+				// Stops accepting while all the connections are open, the Clients wait in the
+				// backlog
+				boolean accepting = connections < maxConnections
+						&& System.currentTimeMillis() >= acceptPausedUntil;
+				acceptKey.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Called by a worker when it served its requests, from its transfer thread.
+	 *
+	 * @param worker
+	 *            the worker
+	 */
+	void finished(FileServerWorker worker) {
+		finished.add(worker);
+		selector.wakeup();
+	}
+
+	/**
+	 * Gets the {@link LineIndex} of a file, for the workers.
+	 */
+	LineIndex getLineIndex(String filename) throws IOException {
+		return parent.getLineIndex(filename);
+	}
+
+	/**
+	 * Accepts the pending connections while there are less than the maximum. A failure, such as
+	 * running out of file descriptors, only drops the connection concerned, the others are
+	 * accepted after {@link #ACCEPT_RETRY_DELAY}.
+	 */
+	private void accept(ServerSocketChannel serverChannel) {
+		while (connections < maxConnections) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				logger.warn("Could not accept connection: {}", e.getMessage());
+				acceptPausedUntil = System.currentTimeMillis() + ACCEPT_RETRY_DELAY;
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			logger.info("Received connection from {}.", channel.socket().getInetAddress());
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				FileServerWorker worker = new FileServerWorker(this, channel, parent.getPath(),
+						metrics, buffers, cache, deflated);
+				channel.register(selector, SelectionKey.OP_READ, worker);
+				idle.add(worker);
+				connections++;
+			} catch (IOException e) {
+				logger.warn("Closed connection from {}: {}", channel.socket().getInetAddress(),
+						e.getMessage());
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// Already dropped
+				}
 			}
+		}
+	}
+
+	private void read(SelectionKey key) {
+		FileServerWorker worker = (FileServerWorker) key.attachment();
+		try {
+			if (worker.readRequests()) {
+				key.interestOps(0);
+				idle.remove(worker);
+				worker.setWaitingSince(System.currentTimeMillis());
+				waiting.addLast(worker);
+			}
+		} catch (IOException e) {
+			logger.info("Closed connection from {}: {}", worker.getAddress(), e.getMessage());
+			idle.remove(worker);
+			close(worker);
+		}
+	}
+
+	/**
+	 * Registers again with the selector a connection whose requests were served, to read its
+	 * next requests.
+	 */
+	private void resume(FileServerWorker worker) {
+		if (!worker.isOpen()) {
+			connections--;
+			return;
+		}
+		try {
+			worker.getChannel().configureBlocking(false);
+			worker.getChannel().register(selector, SelectionKey.OP_READ, worker);
 		} catch (IOException e) {
 			logger.error(e.getMessage(), e);
+			close(worker);
+			return;
+		}
+		// The Client may have sent more requests than were read before the transfer
+		if (worker.hasRequests()) {
+			worker.getChannel().keyFor(selector).interestOps(0);
+			worker.setWaitingSince(System.currentTimeMillis());
+			waiting.addLast(worker);
+		} else {
+			idle.add(worker);
+		}
+	}
+
+	private void close(FileServerWorker worker) {
+		worker.close();
+		connections--;
+	}
+
+	/**
+	 * Closes the connections that waited longer than the queue timeout, and the ones idle for
+	 * longer than the idle timeout.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		List<FileServerWorker> expired = new ArrayList<FileServerWorker>();
+		for (FileServerWorker worker : idle) {
+			if (now - worker.getLastActivity() > IDLE_TIMEOUT) {
+				expired.add(worker);
+			}
+		}
+		idle.removeAll(expired);
+		for (FileServerWorker worker : expired) {
+			logger.info("Closed idle connection from {}.", worker.getAddress());
+			close(worker);
+		}
+		// The queue is in arrival order, so the expired ones are at the head
+		while (!waiting.isEmpty() && now - waiting.peekFirst().getWaitingSince() > queueTimeout) {
+			FileServerWorker worker = waiting.pollFirst();
+			logger.warn("Closed connection from {} after waiting {} ms.", worker.getAddress(), now
+					- worker.getWaitingSince());
+			metrics.rejected();
+			close(worker);
 		}
 	}
+
+	/**
+	 * Hands the waiting connections to the transfer threads while there are free ones.
+	 */
+	private void dispatch(ExecutorService executor) throws IOException {
+		if (waiting.isEmpty() || active >= maxTransfers) {
+			return;
+		}
+		List<FileServerWorker> ready = new ArrayList<FileServerWorker>();
+		while (!waiting.isEmpty() && active + ready.size() < maxTransfers) {
+			FileServerWorker worker = waiting.pollFirst();
+			worker.getChannel().keyFor(selector).cancel();
+			ready.add(worker);
+		}
+		// The cancelled keys are only removed at the next selection, and the channels can not
+		// block until then
+		selector.selectNow();
+		for (FileServerWorker worker : ready) {
+			try {
+				worker.getChannel().configureBlocking(true);
+			} catch (IOException e) {
+				logger.warn("Closed connection from {}: {}", worker.getAddress(), e.getMessage());
+				close(worker);
+				continue;
+			}
+			active++;
+			executor.execute(worker);
+		}
+	}
+
 }
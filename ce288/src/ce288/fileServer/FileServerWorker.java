@@ -1,96 +1,399 @@
 package ce288.fileServer;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
-import java.net.Socket;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Serves the requests of a persistent connection from a {@link ce288.client.Client}.
+ *
+ * Each request is a frame [length][request id][flags][position][section length][filename],
+ * where length counts the bytes after it, and is answered, in the order of the requests, by
+ * [request id][{@link #OK}][section position][section length] followed by the bytes of the
+ * section, or by [request id][{@link #ERROR}][message]. The Client may send several requests
+ * without waiting for the responses.
+ *
+ * The section sent is made of the lines that start in the requested bytes, found with the
+ * {@link LineIndex} of the file, so it may start and end after the requested ones. The sections
+ * of the Tasks created by {@link FileServer#addFile(String)} are already on line boundaries, and
+ * the two parts of a split Task, which is split at any byte, do not share any line.
+ *
+ * A Client that sets {@link #FLAG_DEFLATE} in a request may receive instead
+ * [request id][{@link #OK_DEFLATED}][section position][compressed length] followed by the
+ * section compressed by the {@link DeflatedSectionCache}. The FileServer decides, so the
+ * sections too long to compress are still sent as they are.
+ *
+ * The requests are read by the selector of the {@link FileServerThread} without blocking. The
+ * sections are then sent by a transfer thread with {@link FileChannel#transferTo}, so the kernel
+ * copies them from the page cache to the socket, and if a transfer makes no progress the
+ * section is copied through a buffer of the {@link BufferPool}, so the memory used by a
+ * connection does not depend on the size of the sections. If the shared {@link RegionCache} is
+ * enabled, the sections are sent from its regions instead, so the bytes requested by several
+ * Clients are mapped once.
+ */
 public class FileServerWorker implements Runnable {
 
 	public final static Logger logger = LoggerFactory.getLogger(FileServerWorker.class);
 
-	private static final int BUFSIZE = 8192;
+	/**
+	 * Size of the buffers used when the section can not be sent without copying it.
+	 */
+	public static final int BUFSIZE = 65536;
 
-	private Socket socket;
+	/**
+	 * Maximum size of a request frame.
+	 */
+	public static final int MAX_REQUEST_SIZE = 4096;
+
+	/**
+	 * Length of the fixed fields of a request frame, after its length.
+	 */
+	public static final int REQUEST_HEADER_SIZE = 27;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+	public static final byte OK_DEFLATED = 2;
+
+	/**
+	 * Flag of a request that accepts the section compressed.
+	 */
+	public static final byte FLAG_DEFLATE = 1;
+
+	private FileServerThread server;
+
+	private SocketChannel channel;
 
 	private String path;
 
-	public FileServerWorker(Socket socket, String path) {
-		this.socket = socket;
+	private TransferMetrics metrics;
+
+	private BufferPool buffers;
+
+	/**
+	 * The regions the sections are sent from, or null to read them from the files.
+	 */
+	private RegionCache cache;
+
+	private DeflatedSectionCache deflated;
+
+	/**
+	 * The bytes received and not yet parsed, in write mode.
+	 */
+	private ByteBuffer input;
+
+	/**
+	 * The complete requests not yet served, in order.
+	 */
+	private Queue<SectionRequest> requests;
+
+	/**
+	 * Time the connection last received or served a request.
+	 */
+	private long lastActivity;
+
+	/**
+	 * Time the requests started waiting for a transfer thread.
+	 */
+	private long waitingSince;
+
+	public FileServerWorker(FileServerThread server, SocketChannel channel, String path,
+			TransferMetrics metrics, BufferPool buffers, RegionCache cache,
+			DeflatedSectionCache deflated) {
+		this.server = server;
+		this.channel = channel;
 		this.path = path;
+		this.metrics = metrics;
+		this.buffers = buffers;
+		this.cache = cache;
+		this.deflated = deflated;
+		this.input = ByteBuffer.allocate(MAX_REQUEST_SIZE + 4);
+		this.requests = new ArrayDeque<SectionRequest>();
+		this.lastActivity = System.currentTimeMillis();
 	}
 
+	/**
+	 * Reads the available bytes of the requests, without blocking.
+	 *
+	 * @return true if there is some complete request to serve
+	 * @throws IOException
+	 *             if the connection was closed, or if a request is malformed
+	 */
+	public boolean readRequests() throws IOException {
+		if (channel.read(input) < 0) {
+			throw new EOFException("Connection closed by the client");
+		}
+		lastActivity = System.currentTimeMillis();
+		input.flip();
+		try {
+			while (input.remaining() >= 4) {
+				int length = input.getInt(input.position());
+				if (length < REQUEST_HEADER_SIZE || length > MAX_REQUEST_SIZE) {
+					throw new IOException("Invalid request length " + length);
+				}
+				if (input.remaining() < 4 + length) {
+					break;
+				}
+				input.getInt();
+				long requestId = input.getLong();
+				byte flags = input.get();
+				long pos = input.getLong();
+				long sectionLength = input.getLong();
+				int nameLength = input.getShort() & 0xFFFF;
+				if (nameLength != length - REQUEST_HEADER_SIZE) {
+					throw new IOException("Invalid filename length " + nameLength);
+				}
+				byte[] name = new byte[nameLength];
+				input.get(name);
+				requests.add(new SectionRequest(requestId, new String(name, "UTF-8"), pos,
+						sectionLength, (flags & FLAG_DEFLATE) != 0));
+			}
+		} finally {
+			input.compact();
+		}
+		return !requests.isEmpty();
+	}
+
+	public boolean hasRequests() {
+		return !requests.isEmpty();
+	}
+
+	/**
+	 * Serves the requests received so far, from a transfer thread, with the channel in blocking
+	 * mode.
+	 */
 	@Override
 	public synchronized void run() {
 		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
-
-			String line = in.readLine();
-			if (line == null) {
-				logger.error("Received invalid file request: null");
-				socket.close();
-				return;
+			SectionRequest request;
+			while ((request = requests.poll()) != null) {
+				serve(request);
 			}
-			String filename = path + File.separatorChar + line;
+			lastActivity = System.currentTimeMillis();
+		} catch (IOException e) {
+			metrics.failed();
+			logger.error(e.getMessage(), e);
+			close();
+		} finally {
+			server.finished(this);
+		}
+	}
 
-			line = in.readLine();
-			if (line == null) {
-				logger.error("Received invalid position request: null");
-				socket.close();
-				return;
+	private void serve(SectionRequest request) throws IOException {
+		logger.debug("Requested {} bytes at @{}", request.length, request.pos);
+		long start = System.currentTimeMillis();
+		File file = new File(path + File.separatorChar + request.filename);
+		if (!file.isFile()) {
+			metrics.failed();
+			String msg = file.getPath() + " (No such file)";
+			logger.error(msg);
+			writeFully(error(request.requestId, msg));
+			return;
+		}
+		LineIndex index = server.getLineIndex(request.filename);
+		long pos = index.lineStart(request.pos);
+		long length = Math.max(0, index.lineStart(request.pos + request.length) - pos);
+		if (request.deflate && length > 0 && deflated.accepts(length)) {
+			byte[] section = deflated.get(file, pos, length);
+			ByteBuffer header = ByteBuffer.allocate(25);
+			header.putLong(request.requestId);
+			header.put(OK_DEFLATED);
+			header.putLong(pos);
+			header.putLong(section.length);
+			header.flip();
+			writeFully(header);
+			writeFully(ByteBuffer.wrap(section));
+			metrics.transferred(section.length, System.currentTimeMillis() - start);
+			logger.info("Sent {} bytes of {} compressed in {} to {}.", length, request.filename,
+					section.length, getAddress().getHostName());
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(25);
+		header.putLong(request.requestId);
+		header.put(OK);
+		header.putLong(pos);
+		header.putLong(length);
+		header.flip();
+		writeFully(header);
+		long totalSent;
+		if (cache != null) {
+			totalSent = send(file, pos, length);
+		} else {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				totalSent = transfer(raf.getChannel(), pos, length);
+			} finally {
+				raf.close();
 			}
-			long pos = Long.parseLong(line);
+		}
+		if (totalSent < length) {
+			throw new IOException(request.filename + " was truncated while sent");
+		}
+		metrics.transferred(totalSent, System.currentTimeMillis() - start);
+		logger.info("Sent {} bytes of {} to {}.", totalSent, request.filename, getAddress()
+				.getHostName());
+	}
+
+	private ByteBuffer error(long requestId, String msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(requestId);
+		out.writeByte(ERROR);
+		out.writeUTF(msg == null ? "" : msg);
+		out.flush();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
 
-			line = in.readLine();
-			if (line == null) {
-				logger.error("Received invalid length request: null");
-				socket.close();
-				return;
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Sends a section of the file from the regions of the cache, which the socket reads from
+	 * without copying them.
+	 *
+	 * @return the number of bytes sent, less than length if the file was truncated
+	 */
+	private long send(File file, long pos, long length) throws IOException {
+		long sent = 0;
+		while (sent < length) {
+			long offset = pos + sent;
+			long index = offset / RegionCache.REGION_SIZE;
+			ByteBuffer region = cache.getRegion(file, index);
+			int start = (int) (offset - index * RegionCache.REGION_SIZE);
+			if (start >= region.limit()) {
+				break;
 			}
-			int length = Integer.parseInt(line);
-			
-			logger.debug("Requested {} bytes at @{}", length, pos);
-
-			RandomAccessFile file = new RandomAccessFile(filename, "r");
-			length = (int) Math.min(length, file.length() - pos);
-			file.seek(pos);
-			FileChannel channel = file.getChannel();
-			ByteBuffer byteBuffer = ByteBuffer.allocateDirect(length);
-			byte[] byteArray = new byte[BUFSIZE];
-			int numRead, numGet;
-			int totalRead = 0;
-			while ((numRead = channel.read(byteBuffer)) != -1 && totalRead < length) {
-				if (numRead == 0) {
-					continue;
+			region.limit((int) Math.min(region.limit(), start + length - sent));
+			region.position(start);
+			sent += region.remaining();
+			writeFully(region);
+			logger.debug("Sent {} bytes from a total of {}", sent, length);
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends a section of the file to the socket without copying it to the user space, or through
+	 * a pooled buffer if the transfer makes no progress.
+	 *
+	 * @return the number of bytes sent, less than length if the file was truncated
+	 */
+	private long transfer(FileChannel fileChannel, long pos, long length) throws IOException {
+		long sent = 0;
+		while (sent < length) {
+			long n = fileChannel.transferTo(pos + sent, length - sent, channel);
+			if (n <= 0) {
+				return sent + copy(fileChannel, pos + sent, length - sent);
+			}
+			sent += n;
+			logger.debug("Sent {} bytes from a total of {}", sent, length);
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends a section of the file through a buffer of the pool.
+	 *
+	 * @return the number of bytes sent, less than length if the file was truncated
+	 */
+	private long copy(FileChannel fileChannel, long pos, long length) throws IOException {
+		ByteBuffer buffer = buffers.acquire();
+		try {
+			long sent = 0;
+			while (sent < length) {
+				buffer.clear();
+				if (length - sent < buffer.capacity()) {
+					buffer.limit((int) (length - sent));
 				}
-				byteBuffer.flip();
-				totalRead += numRead;
-				while (byteBuffer.hasRemaining()) {
-					numGet = Math.min(byteBuffer.remaining(), BUFSIZE);
-					byteBuffer.get(byteArray, 0, numGet);
-					out.write(byteArray, 0, numGet);
+				int n = fileChannel.read(buffer, pos + sent);
+				if (n < 0) {
+					break;
 				}
-				byteBuffer.clear();
-				logger.debug("Sent {} bytes from a total of {}", totalRead, length);
+				buffer.flip();
+				writeFully(buffer);
+				sent += n;
+				logger.debug("Sent {} bytes from a total of {}", sent, length);
 			}
-			file.close();
+			return sent;
+		} finally {
+			buffers.release(buffer);
+		}
+	}
 
-			out.flush();
-			out.close();
-			socket.close();
-			logger.info("Closed connection from {} after {} bytes.", socket.getInetAddress().getHostName(), totalRead);
-		} catch (IOException | NumberFormatException e) {
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
 			logger.error(e.getMessage(), e);
 		}
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public InetAddress getAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	/**
+	 * Gets the time the connection last received or served a request.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	public long getWaitingSince() {
+		return waitingSince;
+	}
+
+	public void setWaitingSince(long waitingSince) {
+		this.waitingSince = waitingSince;
+	}
+
+	/**
+	 * A request for a section of a file.
+	 */
+	private static class SectionRequest {
+
+		private final long requestId;
+
+		private final String filename;
+
+		private final long pos;
+
+		private final long length;
+
+		private final boolean deflate;
+
+		public SectionRequest(long requestId, String filename, long pos, long length,
+				boolean deflate) {
+			this.requestId = requestId;
+			this.filename = filename;
+			this.pos = pos;
+			this.length = length;
+			this.deflate = deflate;
+		}
 
 	}
 
@@ -0,0 +1,276 @@
+package ce288.fileServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sparse index of the line starts of a file, so the sections of the {@link ce288.tasks.Task}s
+ * start and end on line boundaries.
+ *
+ * A line starts at the beginning of the file and after each '\n'. For each block of
+ * {@link #INTERVAL} bytes the index keeps the first line start at or after the beginning of the
+ * block, so finding the first line start at or after any offset reads at most the rest of a line
+ * from the file.
+ *
+ * The index is kept in a sidecar file next to the file, named after it with {@link #SUFFIX},
+ * and reused while the length and time of modification of the file do not change.
+ */
+public class LineIndex {
+
+	public static final Logger logger = LoggerFactory.getLogger(LineIndex.class);
+
+	/**
+	 * Number of bytes of the file for each entry of the index.
+	 */
+	public static final int INTERVAL = 65536;
+
+	public static final String SUFFIX = ".lines";
+
+	private static final int MAGIC = 0x4C494458;
+
+	private static final int VERSION = 1;
+
+	private static final int BUFSIZE = 1048576;
+
+	private final File file;
+
+	private final long length;
+
+	private final long modified;
+
+	/**
+	 * The first line start at or after the beginning of each block, or null if the line starts
+	 * are found by reading the file.
+	 */
+	private final long[] entries;
+
+	LineIndex(File file, long length, long modified, long[] entries) {
+		this.file = file;
+		this.length = length;
+		this.modified = modified;
+		this.entries = entries;
+	}
+
+	/**
+	 * Gets the index of a file, from its sidecar if it is current, or built by reading the file,
+	 * in which case the sidecar is written.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public static LineIndex load(File file) throws IOException {
+		File sidecar = getSidecar(file);
+		if (sidecar.isFile()) {
+			try {
+				LineIndex index = read(file, sidecar);
+				if (index != null && index.isCurrent()) {
+					logger.debug("Read line index of {} from {}.", file, sidecar);
+					return index;
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read line index {}: {}", sidecar, e.getMessage());
+			}
+		}
+		LineIndex index = build(file);
+		try {
+			index.write(sidecar);
+		} catch (IOException e) {
+			// The index is still used, it is only built again next time
+			logger.warn("Could not write line index {}: {}", sidecar, e.getMessage());
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index of a file by reading it.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public static LineIndex build(File file) throws IOException {
+		long start = System.currentTimeMillis();
+		long modified = file.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			long[] entries = new long[(int) ((length + INTERVAL - 1) / INTERVAL)];
+			int block = 0;
+			if (entries.length > 0) {
+				entries[block++] = 0;
+			}
+			byte[] buffer = new byte[BUFSIZE];
+			long pos = 0;
+			int n;
+			while (block < entries.length && (n = raf.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '\n') {
+						long lineStart = pos + i + 1;
+						while (block < entries.length && (long) block * INTERVAL <= lineStart) {
+							entries[block++] = lineStart;
+						}
+					}
+				}
+				pos += n;
+			}
+			// The blocks after the start of the last line end at the end of the file
+			while (block < entries.length) {
+				entries[block++] = length;
+			}
+			logger.info("Built line index of {} in {} ms.", file, System.currentTimeMillis()
+					- start);
+			return new LineIndex(file, length, modified, entries);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Gets an index without entries, which finds each line start by reading the file from the
+	 * offset, for a file whose index is being built.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the index
+	 */
+	static LineIndex unindexed(File file) {
+		return new LineIndex(file, file.length(), file.lastModified(), null);
+	}
+
+	/**
+	 * Writes the index to the sidecar of its file, so it is not built again by {@link #load(File)}.
+	 *
+	 * @throws IOException
+	 *             if the sidecar could not be written
+	 */
+	void save() throws IOException {
+		write(getSidecar(file));
+	}
+
+	/**
+	 * Finds the first line start at or after an offset.
+	 *
+	 * @param offset
+	 *            the offset in the file
+	 * @return the line start, or the length of the file if no line starts after the offset
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public long lineStart(long offset) throws IOException {
+		if (offset <= 0) {
+			return 0;
+		}
+		if (offset >= length) {
+			return length;
+		}
+		long entry = entries != null ? entries[(int) (offset / INTERVAL)] : 0;
+		if (offset <= entry) {
+			// No line starts between the beginning of the block and the entry
+			return entry;
+		}
+		// The offset is in a line that starts in this block, which ends before the next entry
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] buffer = new byte[INTERVAL];
+			long pos = offset - 1;
+			raf.seek(pos);
+			int n;
+			while ((n = raf.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '\n') {
+						return Math.min(length, pos + i + 1);
+					}
+				}
+				pos += n;
+			}
+			return length;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Checks whether the file was not changed since the index was built.
+	 *
+	 * @return true if the index is current
+	 */
+	public boolean isCurrent() {
+		return file.length() == length && file.lastModified() == modified;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public static File getSidecar(File file) {
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	private static LineIndex read(File file, File sidecar) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				sidecar)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long length = in.readLong();
+			long modified = in.readLong();
+			if (in.readInt() != INTERVAL) {
+				return null;
+			}
+			long[] entries = new long[in.readInt()];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = in.readLong();
+			}
+			return new LineIndex(file, length, modified, entries);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the index to a temporary file renamed over the sidecar, so a sidecar is never
+	 * partially written.
+	 */
+	private void write(File sidecar) throws IOException {
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeInt(INTERVAL);
+			out.writeInt(entries.length);
+			for (long entry : entries) {
+				out.writeLong(entry);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(sidecar)) {
+			sidecar.delete();
+			if (!tmp.renameTo(sidecar)) {
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to " + sidecar);
+			}
+		}
+	}
+
+}
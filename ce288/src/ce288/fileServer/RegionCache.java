@@ -0,0 +1,153 @@
+package ce288.fileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ce288.metrics.Counter;
+import ce288.metrics.Gauge;
+import ce288.metrics.Metrics;
+
+/**
+ * Cache of memory-mapped regions of the files, shared by all the {@link FileServerWorker}s, so
+ * the sections requested again, by backups, retries or the margins of neighbouring sections, are
+ * sent from the same mapping instead of being read again.
+ *
+ * The files are mapped in aligned regions of {@link #REGION_SIZE} bytes, keyed by file, time of
+ * modification and index, so a file replaced on disk is mapped again. The least recently used
+ * regions are dropped once the mapped bytes exceed the budget. A dropped region is unmapped by
+ * the garbage collector once no worker is sending from it, so the budget bounds the regions
+ * kept, not the address space in use at any moment.
+ */
+public class RegionCache {
+
+	/**
+	 * Size of the regions the files are mapped in.
+	 */
+	public static final int REGION_SIZE = 4 * 1048576;
+
+	private final long budget;
+
+	/**
+	 * Number of bytes mapped by the cached regions.
+	 */
+	private long size;
+
+	/**
+	 * The regions, from the least to the most recently used.
+	 */
+	private final LinkedHashMap<RegionKey, MappedByteBuffer> regions;
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	private final Counter evictions;
+
+	public RegionCache(long budget, Metrics metrics) {
+		this.budget = budget;
+		this.size = 0;
+		this.regions = new LinkedHashMap<RegionKey, MappedByteBuffer>(16, 0.75f, true);
+		this.hits = metrics.counter("cacheHits");
+		this.misses = metrics.counter("cacheMisses");
+		this.evictions = metrics.counter("cacheEvictions");
+		metrics.add("cacheBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				synchronized (RegionCache.this) {
+					return size;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets a region of a file, mapping it if it is not cached.
+	 *
+	 * @param file
+	 *            the file
+	 * @param index
+	 *            the index of the region, which starts at index * {@link #REGION_SIZE}
+	 * @return a view of the region, with its own position and limit, shorter than
+	 *         {@link #REGION_SIZE} at the end of the file and empty past it
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	public synchronized ByteBuffer getRegion(File file, long index) throws IOException {
+		RegionKey key = new RegionKey(file.getPath(), file.lastModified(), index);
+		MappedByteBuffer region = regions.get(key);
+		if (region != null) {
+			hits.increment();
+			return region.duplicate();
+		}
+		misses.increment();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long start = index * REGION_SIZE;
+			long length = Math.min(REGION_SIZE, channel.size() - start);
+			if (length <= 0) {
+				return ByteBuffer.allocate(0);
+			}
+			// The mapping stays valid after the file is closed
+			region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		} finally {
+			raf.close();
+		}
+		regions.put(key, region);
+		size += region.capacity();
+		evict();
+		return region.duplicate();
+	}
+
+	/**
+	 * Drops the least recently used regions while the budget is exceeded, keeping at least the
+	 * last one.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<RegionKey, MappedByteBuffer>> it = regions.entrySet().iterator();
+		while (size > budget && regions.size() > 1) {
+			size -= it.next().getValue().capacity();
+			it.remove();
+			evictions.increment();
+		}
+	}
+
+	private static class RegionKey {
+
+		private final String path;
+
+		private final long modified;
+
+		private final long index;
+
+		public RegionKey(String path, long modified, long index) {
+			this.path = path;
+			this.modified = modified;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return (path.hashCode() * 31 + (int) (modified ^ (modified >>> 32))) * 31
+					+ (int) (index ^ (index >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RegionKey)) {
+				return false;
+			}
+			RegionKey other = (RegionKey) obj;
+			return index == other.index && modified == other.modified && path.equals(other.path);
+		}
+
+	}
+
+}
@@ -0,0 +1,68 @@
+package ce288.fileServer;
+
+import ce288.metrics.Counter;
+import ce288.metrics.Histogram;
+import ce288.metrics.Meter;
+import ce288.metrics.Metrics;
+
+/**
+ * The metrics of the sections sent by the {@link FileServerWorker}s, shared by all of them.
+ */
+public class TransferMetrics {
+
+	/**
+	 * Number of sections sent.
+	 */
+	private final Counter transfers;
+
+	/**
+	 * Number of requests that failed.
+	 */
+	private final Counter errors;
+
+	/**
+	 * Number of connections closed because they waited too long.
+	 */
+	private final Counter rejections;
+
+	/**
+	 * Bytes sent, and the rate at which they are sent.
+	 */
+	private final Meter bytes;
+
+	/**
+	 * Time to send a section, in milliseconds.
+	 */
+	private final Histogram times;
+
+	public TransferMetrics(Metrics metrics) {
+		transfers = metrics.counter("transfers");
+		errors = metrics.counter("transferErrors");
+		rejections = metrics.counter("transfersRejected");
+		bytes = metrics.meter("transferBytes");
+		times = metrics.histogram("transferTime");
+	}
+
+	/**
+	 * Records a section sent.
+	 * 
+	 * @param length
+	 *            the number of bytes sent
+	 * @param millis
+	 *            the time it took
+	 */
+	public void transferred(long length, long millis) {
+		transfers.increment();
+		bytes.mark(length);
+		times.record(millis);
+	}
+
+	public void failed() {
+		errors.increment();
+	}
+
+	public void rejected() {
+		rejections.increment();
+	}
+
+}
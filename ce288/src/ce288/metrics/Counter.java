@@ -0,0 +1,30 @@
+package ce288.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of times something happened since the process started.
+ */
+public class Counter implements Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+
+	public long get() {
+		return count.get();
+	}
+
+	@Override
+	public void snapshot(String name, Map<String, Long> values) {
+		values.put(name, count.get());
+	}
+
+}
@@ -0,0 +1,17 @@
+package ce288.metrics;
+
+import java.util.Map;
+
+/**
+ * A value read from its owner each time the metrics are copied, such as the size of a queue.
+ */
+public abstract class Gauge implements Metric {
+
+	public abstract long getValue();
+
+	@Override
+	public void snapshot(String name, Map<String, Long> values) {
+		values.put(name, getValue());
+	}
+
+}
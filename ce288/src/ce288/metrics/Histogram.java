@@ -0,0 +1,112 @@
+package ce288.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, such as latencies in milliseconds.
+ * 
+ * The values are counted in buckets that split each power of two in {@link #SUB_BUCKETS} equal
+ * parts, so a percentile is within 1/8 of the real value, and recording one costs a few atomic
+ * additions and no allocation.
+ */
+public class Histogram implements Metric {
+
+	/**
+	 * Number of buckets each power of two is split into, a power of two itself.
+	 */
+	private static final int SUB_BUCKETS = 8;
+
+	private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+	private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values, as when the clock goes backwards, count as 0.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		buckets.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimates a percentile of the recorded values.
+	 * 
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the upper bound of the bucket of the percentile, at most the maximum value
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long step = 1L << (exponent - SUB_BITS);
+		return (SUB_BUCKETS + index % SUB_BUCKETS) * step + step - 1;
+	}
+
+	@Override
+	public void snapshot(String name, Map<String, Long> values) {
+		values.put(name + ".count", getCount());
+		values.put(name + ".mean", getMean());
+		values.put(name + ".p50", getPercentile(50));
+		values.put(name + ".p90", getPercentile(90));
+		values.put(name + ".p99", getPercentile(99));
+		values.put(name + ".max", getMax());
+	}
+
+}
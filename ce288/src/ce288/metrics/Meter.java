@@ -0,0 +1,72 @@
+package ce288.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts an amount, such as bytes or lines, and the rate at which it grows.
+ * 
+ * The rate is the amount per second over the last window of {@link #WINDOW} milliseconds. The
+ * window is only moved when the meter is marked or read, so marking costs an atomic addition
+ * most of the time.
+ */
+public class Meter implements Metric {
+
+	/**
+	 * Minimum length of the window the rate is measured over, in milliseconds.
+	 */
+	public static final long WINDOW = 10000;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private volatile long windowStart = System.currentTimeMillis();
+
+	/**
+	 * The count when the current window started.
+	 */
+	private long windowCount = 0;
+
+	/**
+	 * Rate of the last complete window.
+	 */
+	private volatile long rate = 0;
+
+	public void mark(long n) {
+		count.addAndGet(n);
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= WINDOW) {
+			tick(now);
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the rate over the last window.
+	 * 
+	 * @return the amount per second
+	 */
+	public long getRate() {
+		tick(System.currentTimeMillis());
+		return rate;
+	}
+
+	private synchronized void tick(long now) {
+		long elapsed = now - windowStart;
+		if (elapsed >= WINDOW) {
+			long current = count.get();
+			rate = (current - windowCount) * 1000 / elapsed;
+			windowCount = current;
+			windowStart = now;
+		}
+	}
+
+	@Override
+	public void snapshot(String name, Map<String, Long> values) {
+		values.put(name + ".count", getCount());
+		values.put(name + ".rate", getRate());
+	}
+
+}
@@ -0,0 +1,20 @@
+package ce288.metrics;
+
+import java.util.Map;
+
+/**
+ * A measurement kept in {@link Metrics}.
+ */
+public interface Metric {
+
+	/**
+	 * Copies the current values of the metric.
+	 * 
+	 * @param name
+	 *            the name of the metric, which prefixes the names of its values
+	 * @param values
+	 *            the map where the values are put, by name
+	 */
+	public void snapshot(String name, Map<String, Long> values);
+
+}
@@ -0,0 +1,163 @@
+package ce288.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The named metrics of a component, which may be read with {@link #snapshot()} or through JMX
+ * once {@link #register(String, String)} is called.
+ * 
+ * Each value of a metric is a read-only attribute of the MBean, such as "queueTime.p99".
+ */
+public class Metrics implements DynamicMBean {
+
+	public final static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+	/**
+	 * Domain of the names of the MBeans.
+	 */
+	public static final String DOMAIN = "ce288";
+
+	/**
+	 * The metrics in the order they were created.
+	 */
+	private final Map<String, Metric> metrics;
+
+	public Metrics() {
+		metrics = new LinkedHashMap<String, Metric>();
+	}
+
+	public Counter counter(String name) {
+		Counter counter = new Counter();
+		add(name, counter);
+		return counter;
+	}
+
+	public Meter meter(String name) {
+		Meter meter = new Meter();
+		add(name, meter);
+		return meter;
+	}
+
+	public Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		add(name, histogram);
+		return histogram;
+	}
+
+	public synchronized void add(String name, Metric metric) {
+		metrics.put(name, metric);
+	}
+
+	/**
+	 * Copies the current values of all the metrics.
+	 * 
+	 * @return the values by name, in the order the metrics were created
+	 */
+	public Map<String, Long> snapshot() {
+		List<Map.Entry<String, Metric>> entries;
+		synchronized (this) {
+			entries = new ArrayList<Map.Entry<String, Metric>>(metrics.entrySet());
+		}
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Metric> entry : entries) {
+			entry.getValue().snapshot(entry.getKey(), values);
+		}
+		return values;
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server as ce288:type=TYPE,name=NAME. A failure
+	 * is only logged, as the metrics are still available through {@link #snapshot()}.
+	 * 
+	 * @param type
+	 *            the kind of component
+	 * @param name
+	 *            the name of the instance, or null if there is only one in the process
+	 */
+	public void register(String type, String name) {
+		try {
+			String objectName = DOMAIN + ":type=" + type;
+			if (name != null) {
+				objectName += ",name=" + ObjectName.quote(name);
+			}
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName mbeanName = new ObjectName(objectName);
+			if (server.isRegistered(mbeanName)) {
+				server.unregisterMBean(mbeanName);
+			}
+			server.registerMBean(this, mbeanName);
+		} catch (JMException e) {
+			logger.error("Could not register metrics of " + type + ": " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName),
+				"There are no operations");
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Long> values = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (String name : values.keySet()) {
+			attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true,
+					false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics", attributes, null, null, null);
+	}
+
+}
@@ -1,5 +1,6 @@
 package ce288.server;
 
+import java.io.File;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -8,31 +9,92 @@ import java.rmi.server.UnicastRemoteObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ce288.tasks.ResultStore;
 import ce288.tasks.TaskRepository;
 import ce288.tasks.TaskRepositoryInterface;
+import ce288.tasks.TaskRepositoryLocator;
+import ce288.transport.TransportServer;
 
 public class Server {
 
 	public final static Logger logger = LoggerFactory.getLogger(Server.class);
 
+	/**
+	 * Default folder of the journal of the {@link TaskRepository}.
+	 */
+	public static final String DEFAULT_JOURNAL_PATH = "journal";
+
 	private TaskRepository tasks;
 
-	public Server() {
+	/**
+	 * Creates the Server, recovering the {@link TaskRepository} from its journal.
+	 * 
+	 * @param journalPath
+	 *            the folder of the journal
+	 * @param resultHeapBudget
+	 *            estimated size, in bytes, of the results kept on the heap before they are
+	 *            moved to the disk
+	 */
+	public Server(String journalPath, long resultHeapBudget) {
+		this(journalPath, resultHeapBudget, null);
+	}
+
+	/**
+	 * Creates the Server as a shard of the repository. Each shard needs its own journal folder,
+	 * and all the shards must be started before the Clients and the FileServers, which find them
+	 * in the registry.
+	 * 
+	 * @param journalPath
+	 *            the folder of the journal
+	 * @param resultHeapBudget
+	 *            estimated size, in bytes, of the results kept on the heap before they are
+	 *            moved to the disk
+	 * @param shard
+	 *            the name of the shard, or null if the repository is not sharded
+	 */
+	public Server(String journalPath, long resultHeapBudget, String shard) {
 		logger.info("Server started.");
 		try {
-			tasks = new TaskRepository();
+			tasks = new TaskRepository(new File(journalPath), resultHeapBudget,
+					TaskRepository.EXPIRATION_PRECISION);
 			UnicastRemoteObject.unexportObject(tasks, true);
+			tasks.getMetrics().register("TaskRepository", shard);
+			if (TaskRepositoryLocator.isNio()) {
+				// The shards are listed by address in the Clients and the FileServers
+				new Thread(new TransportServer(tasks, TaskRepositoryLocator.getPort()),
+						"TransportServer").start();
+				return;
+			}
 			TaskRepositoryInterface stub = (TaskRepositoryInterface) UnicastRemoteObject
 					.exportObject(tasks, 0);
 			Registry registry = LocateRegistry.getRegistry();
-			registry.rebind("TaskRepository", stub);
+			registry.rebind(TaskRepositoryLocator.getBindingName(shard), stub);
+			if (shard != null) {
+				logger.info("Serving shard {}.", shard);
+			}
 		} catch (RemoteException e) {
 			logger.error(e.getMessage(), e);
 		}
 	}
 
 	public static void main(String[] args) {
-		new Server();
+		String journalPath = DEFAULT_JOURNAL_PATH;
+		long resultHeapBudget = ResultStore.DEFAULT_HEAP_BUDGET;
+		String shard = null;
+		if (args.length < 1) {
+			logger.info("Missing journal path, using default value of {}", DEFAULT_JOURNAL_PATH);
+		} else {
+			journalPath = args[0];
+		}
+		if (args.length >= 2) {
+			// Budget is given in megabytes
+			resultHeapBudget = Long.parseLong(args[1]) * 1048576;
+		}
+		if (args.length >= 3) {
+			// Several Servers on the same registry, each one with a name such as 0, 1, 2...
+			shard = args[2];
+		}
+		new Server(journalPath, resultHeapBudget, shard);
 	}
 
 }
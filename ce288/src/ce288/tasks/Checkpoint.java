@@ -0,0 +1,74 @@
+package ce288.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * Progress reported by the Client processing a Task: the offset in the file up to which the
+ * section was processed, and the logs found until there.
+ */
+public class Checkpoint {
+
+	private long position;
+
+	private List<ResultLog> logs;
+
+	public Checkpoint(long position) {
+		this.position = position;
+		this.logs = new ArrayList<ResultLog>();
+	}
+
+	/**
+	 * Copies a checkpoint, as when the state of the repository is written to a snapshot.
+	 */
+	public Checkpoint(Checkpoint other) {
+		synchronized (other) {
+			this.position = other.position;
+			this.logs = new ArrayList<ResultLog>(other.logs);
+		}
+	}
+
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Records the progress of the Client.
+	 * 
+	 * @param position
+	 *            the offset in the file where the processing would resume
+	 * @param partialLogs
+	 *            the logs found since the previous checkpoint
+	 */
+	public synchronized void add(long position, List<ResultLog> partialLogs) {
+		this.position = Math.max(this.position, position);
+		logs.addAll(partialLogs);
+	}
+
+	/**
+	 * Gets the logs found until the checkpoint.
+	 * 
+	 * @return a copy of the logs
+	 */
+	public synchronized List<ResultLog> getLogs() {
+		return new ArrayList<ResultLog>(logs);
+	}
+
+	/**
+	 * Moves the start of the Task to the checkpoint, so the part of the section already processed
+	 * is skipped by the next Client.
+	 * 
+	 * @param task
+	 *            the Task, which must not be leased to any Client
+	 */
+	public synchronized void apply(Task task) {
+		if (position > task.getPosition()) {
+			long end = task.getPosition() + task.getLength();
+			task.setPosition(Math.min(position, end));
+			task.setLength(end - task.getPosition());
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package ce288.tasks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to a fixed number of shards by consistent hashing. Each shard is placed at several
+ * points of the ring, and a key belongs to the shard of the first point at or after its hash,
+ * so the keys are spread evenly and only a fraction of them moves when a shard is added.
+ */
+public class ConsistentHashRing {
+
+	/**
+	 * Number of points of each shard in the ring.
+	 */
+	public static final int VIRTUAL_NODES = 128;
+
+	private final TreeMap<Long, Integer> ring;
+
+	/**
+	 * Creates the ring.
+	 * 
+	 * @param names
+	 *            the names of the shards, which must be the same, in the same order, in every
+	 *            process sharing the ring
+	 */
+	public ConsistentHashRing(String[] names) {
+		ring = new TreeMap<Long, Integer>();
+		for (int shard = 0; shard < names.length; shard++) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(hash(names[shard] + "#" + i), shard);
+			}
+		}
+	}
+
+	/**
+	 * Gets the shard a key belongs to.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the index of the shard
+	 */
+	public int getShard(String key) {
+		Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(
+					key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+}
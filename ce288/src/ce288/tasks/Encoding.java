@@ -0,0 +1,101 @@
+package ce288.tasks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * Binary encodings shared by the {@link java.io.Externalizable} forms of the Tasks and
+ * Results, the {@link TaskJournal}, the {@link ResultStore} and the NIO transport, so the same
+ * bytes are written everywhere.
+ */
+public final class Encoding {
+
+	private Encoding() {
+	}
+
+	/**
+	 * Writes a UUID as its two longs.
+	 */
+	public static void writeUUID(DataOutput out, UUID id) throws IOException {
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+	}
+
+	public static UUID readUUID(DataInput in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	public static void writeFormat(DataOutput out, FileFormat format) throws IOException {
+		out.writeByte(format == null ? -1 : format.ordinal());
+	}
+
+	public static FileFormat readFormat(DataInput in) throws IOException {
+		byte format = in.readByte();
+		return format < 0 ? null : FileFormat.values()[format];
+	}
+
+	/**
+	 * Writes a string as the number of its UTF-8 bytes followed by them. Unlike
+	 * {@link DataOutput#writeUTF(String)} it has no limit of 65535 bytes, as a message may quote
+	 * a whole line of a file.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an address as its raw bytes, preceded by their number, 0 for a null address.
+	 */
+	public static void writeAddress(DataOutput out, InetAddress address) throws IOException {
+		byte[] bytes = address == null ? new byte[0] : address.getAddress();
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+
+	public static InetAddress readAddress(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readByte()];
+		in.readFully(bytes);
+		return bytes.length == 0 ? null : InetAddress.getByAddress(bytes);
+	}
+
+	/**
+	 * Writes the ResultLogs, preceded by their number.
+	 */
+	public static void writeLogs(DataOutput out, List<ResultLog> logs) throws IOException {
+		out.writeInt(logs.size());
+		for (ResultLog log : logs) {
+			out.writeLong(log.getPos());
+			writeString(out, log.getMsg());
+		}
+	}
+
+	public static List<ResultLog> readLogs(DataInput in) throws IOException {
+		int count = in.readInt();
+		List<ResultLog> logs = new ArrayList<ResultLog>(count);
+		for (int i = 0; i < count; i++) {
+			logs.add(new ResultLog(in.readLong(), readString(in)));
+		}
+		return logs;
+	}
+
+}
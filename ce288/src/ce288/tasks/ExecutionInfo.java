@@ -6,7 +6,24 @@ public class ExecutionInfo {
 
 	private long startTime;
 
-	private long timeout;
+	private volatile long timeout;
+
+	/**
+	 * Time by which the Client must renew the lease again, or 0 until the first renewal. Once
+	 * the Client sends heartbeats, missing a few of them expires the lease before the timeout.
+	 */
+	private volatile long livenessDeadline;
+
+	/**
+	 * Time of the first renewal of the lease, when the Client started processing the Task, or 0
+	 * if the Task is still queued in the Client.
+	 */
+	private volatile long processingStart;
+
+	/**
+	 * Whether an idle Client asked for the Task to be split at the next report of progress.
+	 */
+	private volatile boolean splitRequested;
 	
 	private UUID clientId;
 	
@@ -27,6 +44,22 @@ public class ExecutionInfo {
 		this.startTime = startTime;
 	}
 
+	public long getProcessingStart() {
+		return processingStart;
+	}
+
+	public void setProcessingStart(long processingStart) {
+		this.processingStart = processingStart;
+	}
+
+	public boolean isSplitRequested() {
+		return splitRequested;
+	}
+
+	public void setSplitRequested(boolean splitRequested) {
+		this.splitRequested = splitRequested;
+	}
+
 	public long getTimeout() {
 		return timeout;
 	}
@@ -35,8 +68,24 @@ public class ExecutionInfo {
 		this.timeout = timeout;
 	}
 	
+	public long getLivenessDeadline() {
+		return livenessDeadline;
+	}
+
+	public void setLivenessDeadline(long livenessDeadline) {
+		this.livenessDeadline = livenessDeadline;
+	}
+
+	/**
+	 * Gets the time the lease expires, the earliest of the timeout and the liveness deadline.
+	 */
+	public long getDeadline() {
+		long liveness = livenessDeadline;
+		return liveness == 0 ? timeout : Math.min(timeout, liveness);
+	}
+
 	public boolean isExpired() {
-		return timeout > System.currentTimeMillis();
+		return System.currentTimeMillis() >= getDeadline();
 	}
 
 	public UUID getClientId() {
@@ -1,32 +1,106 @@
 package ce288.tasks;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
+/**
+ * Keeps the deadlines of the {@link ExecutionInfo}s ordered, and notifies the
+ * {@link TaskRepository} when they expire.
+ * 
+ * Only the expired deadlines are visited, so the cost of each check is proportional to the
+ * number of expired leases rather than to the number of executing Tasks. The queue has its own
+ * lock, so checking the deadlines never blocks the dispatch of Tasks.
+ */
 public class ExpirationWatchdog implements Runnable {
 
 	public final static Logger logger = LoggerFactory.getLogger(TaskRepository.class);
 
-	private long period;
+	/**
+	 * Maximum time between the expiration of a lease and its handling.
+	 */
+	private long precision;
 
 	private TaskRepository repository;
 
-	public ExpirationWatchdog(TaskRepository repository, long period) {
+	private DelayQueue<Deadline> deadlines;
+
+	public ExpirationWatchdog(TaskRepository repository, long precision) {
 		this.repository = repository;
-		this.period = period;
+		this.precision = precision;
+		this.deadlines = new DelayQueue<Deadline>();
+	}
+
+	/**
+	 * Schedules the expiration of the lease at its current deadline.
+	 * 
+	 * If the deadline is later extended, the lease must be checked again by the repository when
+	 * the original deadline is reached, and scheduled once more.
+	 * 
+	 * @param info
+	 *            the lease
+	 */
+	public void schedule(ExecutionInfo info) {
+		deadlines.add(new Deadline(info, info.getDeadline()));
 	}
 
 	@Override
 	public void run() {
+		List<Deadline> expired = new ArrayList<Deadline>();
 		while (true) {
 			try {
-				Thread.sleep(period);
-				repository.removeExpired();
+				Thread.sleep(precision);
 			} catch (InterruptedException e) {
-				logger.error(e.getMessage(), e);
+				logger.warn("Expiration watchdog interrupted, the leases no longer expire.");
+				Thread.currentThread().interrupt();
+				return;
 			}
+			deadlines.drainTo(expired);
+			for (Deadline deadline : expired) {
+				try {
+					repository.expire(deadline.info);
+				} catch (RuntimeException e) {
+					// Checked again at the next round, so the lease still expires
+					logger.error("Could not expire lease of task " + deadline.info.getTask()
+							+ ": " + e.getMessage(), e);
+					deadlines.add(deadline);
+				}
+			}
+			expired.clear();
 		}
 	}
 
+	/**
+	 * The timeout of a lease at the time it was scheduled, which does not change while it is in
+	 * the queue.
+	 */
+	private static class Deadline implements Delayed {
+
+		private final ExecutionInfo info;
+
+		private final long time;
+
+		public Deadline(ExecutionInfo info, long time) {
+			this.info = info;
+			this.time = time;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long other = ((Deadline) o).time;
+			return time < other ? -1 : (time == other ? 0 : 1);
+		}
+
+	}
+
 }
@@ -1,17 +1,27 @@
 package ce288.tasks;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-public class Result implements Serializable {
+public class Result implements Externalizable {
 
 	private static final long serialVersionUID = -4098289025269204995L;
 
-	private final UUID taskId;
+	private UUID taskId;
 
-	private ArrayList<ResultLog> logs;
+	private List<ResultLog> logs;
+
+	/**
+	 * Creates an empty Result, to be filled by {@link #readExternal(ObjectInput)}.
+	 */
+	public Result() {
+		logs = new ArrayList<ResultLog>();
+	}
 
 	public Result(UUID taskId) {
 		logs = new ArrayList<ResultLog>();
@@ -30,12 +40,34 @@ public class Result implements Serializable {
 		return taskId;
 	}
 
-	public class ResultLog implements Serializable, Comparable<ResultLog> {
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Encoding.writeUUID(out, taskId);
+		Encoding.writeLogs(out, logs);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		taskId = Encoding.readUUID(in);
+		logs = Encoding.readLogs(in);
+	}
+
+	/**
+	 * A message about a position of the file of the Task. It does not refer to its Result, so it
+	 * may be kept and sent on its own.
+	 */
+	public static class ResultLog implements Externalizable, Comparable<ResultLog> {
 
 		private static final long serialVersionUID = -7315606130594463203L;
 		private long pos;
 		private String msg;
 
+		/**
+		 * Creates an empty ResultLog, to be filled by {@link #readExternal(ObjectInput)}.
+		 */
+		public ResultLog() {
+		}
+
 		public ResultLog(long pos, String msg) {
 			this.pos = pos;
 			this.msg = msg;
@@ -45,16 +77,20 @@ public class Result implements Serializable {
 			return pos;
 		}
 
-		public void setPos(long pos) {
-			this.pos = pos;
-		}
-
 		public String getMsg() {
 			return msg;
 		}
 
-		public void setMsg(String msg) {
-			this.msg = msg;
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeLong(pos);
+			Encoding.writeString(out, msg);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			pos = in.readLong();
+			msg = Encoding.readString(in);
 		}
 
 		@Override
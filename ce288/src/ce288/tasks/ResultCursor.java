@@ -0,0 +1,101 @@
+package ce288.tasks;
+
+import java.util.List;
+import java.util.UUID;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * Position of a reader in the results of a list of Tasks.
+ */
+public class ResultCursor {
+
+	private final List<UUID> taskIds;
+
+	/**
+	 * Index in taskIds of the Task being read.
+	 */
+	private int task;
+
+	/**
+	 * Index of the next log of the Task being read.
+	 */
+	private int log;
+
+	/**
+	 * The result of the Task being read, or null if it is not loaded yet.
+	 */
+	private List<ResultLog> logs;
+
+	/**
+	 * Time of the last page read, used to discard abandoned cursors.
+	 */
+	private long lastAccess;
+
+	public ResultCursor(List<UUID> taskIds) {
+		this.taskIds = taskIds;
+		this.task = 0;
+		this.log = 0;
+		this.lastAccess = System.currentTimeMillis();
+	}
+
+	public List<UUID> getTaskIds() {
+		return taskIds;
+	}
+
+	public boolean isFinished() {
+		return task >= taskIds.size();
+	}
+
+	/**
+	 * Gets the Task being read.
+	 * 
+	 * @return the Task id, or null if all were read
+	 */
+	public UUID getCurrentTask() {
+		return isFinished() ? null : taskIds.get(task);
+	}
+
+	public List<ResultLog> getLogs() {
+		return logs;
+	}
+
+	/**
+	 * Sets the result of the Task being read, once it is loaded.
+	 * 
+	 * @param logs
+	 *            the result
+	 */
+	public void setLogs(List<ResultLog> logs) {
+		this.logs = logs;
+	}
+
+	/**
+	 * Copies logs of the Task being read to the page, moving to the next Task when all its logs
+	 * were copied.
+	 * 
+	 * @param page
+	 *            the page being filled
+	 * @param maxLogs
+	 *            the maximum size of the page
+	 */
+	public void read(List<ResultLog> page, int maxLogs) {
+		int end = Math.min(logs.size(), log + maxLogs - page.size());
+		page.addAll(logs.subList(log, end));
+		log = end;
+		if (log >= logs.size()) {
+			task++;
+			log = 0;
+			logs = null;
+		}
+	}
+
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	public void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+}
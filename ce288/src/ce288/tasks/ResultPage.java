@@ -0,0 +1,58 @@
+package ce288.tasks;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.List;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * A page of the {@link ResultLog}s read through a result cursor.
+ */
+public class ResultPage implements Externalizable {
+
+	private static final long serialVersionUID = 2754026335930569851L;
+
+	private List<ResultLog> logs;
+
+	private boolean last;
+
+	/**
+	 * Creates an empty page, to be filled by {@link #readExternal(ObjectInput)}.
+	 */
+	public ResultPage() {
+	}
+
+	public ResultPage(List<ResultLog> logs, boolean last) {
+		this.logs = logs;
+		this.last = last;
+	}
+
+	public List<ResultLog> getLogs() {
+		return logs;
+	}
+
+	/**
+	 * Whether this is the last page of the cursor, which is closed after it.
+	 * 
+	 * @return true if there are no more pages
+	 */
+	public boolean isLast() {
+		return last;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Encoding.writeLogs(out, logs);
+		out.writeBoolean(last);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		logs = Encoding.readLogs(in);
+		last = in.readBoolean();
+	}
+
+}
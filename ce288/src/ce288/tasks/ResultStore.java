@@ -0,0 +1,571 @@
+package ce288.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * Stores the {@link ResultLog}s of the finished Tasks until they are retrieved.
+ *
+ * The results are kept on the heap while their estimated size is within the budget. Beyond
+ * it, the oldest ones are spilled to append-only segment files in the folder, and only read back
+ * when they are retrieved. A segment file is deleted as soon as all the results written to it
+ * are removed.
+ *
+ * The snapshots of the {@link TaskJournal} refer to the spilled results by their location
+ * instead of copying them, so the segment files left by a previous instance are kept until
+ * {@link #recovered()}, and the results found in them by the replay are adopted with
+ * {@link #adopt(UUID, int, long, int)}.
+ */
+public class ResultStore {
+
+	public final static Logger logger = LoggerFactory.getLogger(ResultStore.class);
+
+	/**
+	 * Default heap budget, 64MB.
+	 */
+	public static final long DEFAULT_HEAP_BUDGET = 67108864;
+
+	/**
+	 * Size after which a new segment file is started, 64MB.
+	 */
+	public static final long SEGMENT_SIZE = 67108864;
+
+	/**
+	 * Fraction of the budget the heap is brought down to when it is exceeded, so the spilling
+	 * is done in batches.
+	 */
+	private static final double LOW_WATERMARK = 0.75;
+
+	private static final String SEGMENT_PREFIX = "results-";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private final File dir;
+
+	private final long heapBudget;
+
+	/**
+	 * The results kept on the heap, oldest first.
+	 */
+	private final LinkedHashMap<UUID, List<ResultLog>> heap;
+
+	/**
+	 * Estimated size of the results kept on the heap.
+	 */
+	private long heapBytes;
+
+	/**
+	 * Where each spilled result is.
+	 */
+	private final Map<UUID, Location> disk;
+
+	/**
+	 * The segment files with some result not yet removed, by sequence number.
+	 */
+	private final Map<Integer, Segment> segments;
+
+	/**
+	 * The segment being written.
+	 */
+	private Segment current;
+
+	private int nextSequence;
+
+	/**
+	 * Serializes the writing of the segments, so it is done without holding the lock of the
+	 * maps.
+	 */
+	private final Object spillLock;
+
+	/**
+	 * Creates the store. Segment files left in the folder by a previous instance are kept until
+	 * {@link #recovered()}.
+	 *
+	 * @param dir
+	 *            the folder of the segment files
+	 * @param heapBudget
+	 *            the estimated size, in bytes, of the results kept on the heap
+	 * @throws IOException
+	 *             if the folder could not be created
+	 */
+	public ResultStore(File dir, long heapBudget) throws IOException {
+		this.dir = dir;
+		this.heapBudget = heapBudget;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create result folder " + dir);
+		}
+		heap = new LinkedHashMap<UUID, List<ResultLog>>();
+		heapBytes = 0;
+		disk = new HashMap<UUID, Location>();
+		segments = new HashMap<Integer, Segment>();
+		nextSequence = 0;
+		spillLock = new Object();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						int sequence = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+								name.length() - SEGMENT_SUFFIX.length()));
+						segments.put(sequence, new Segment(sequence));
+						nextSequence = Math.max(nextSequence, sequence + 1);
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring file {} in result folder.", name);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the result of a Task found in a segment file left by a previous instance.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @param sequence
+	 *            the sequence number of the segment
+	 * @param offset
+	 *            the position of the result in the segment
+	 * @param length
+	 *            the length of the result
+	 * @throws IOException
+	 *             if the segment is missing or too short
+	 */
+	public synchronized void adopt(UUID taskId, int sequence, long offset, int length)
+			throws IOException {
+		Segment segment = segments.get(sequence);
+		if (segment == null || segment.size < offset + length) {
+			throw new IOException("Result of task " + taskId + " is missing from segment "
+					+ sequence);
+		}
+		List<ResultLog> previous = heap.remove(taskId);
+		if (previous != null) {
+			heapBytes -= estimate(previous);
+		}
+		free(disk.remove(taskId));
+		segment.live++;
+		disk.put(taskId, new Location(segment, offset, length));
+	}
+
+	/**
+	 * Deletes the segment files left by a previous instance without any adopted result. Called
+	 * once the journal is replayed.
+	 */
+	public synchronized void recovered() {
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			if (segment.live == 0 && segment != current) {
+				segments.remove(segment.sequence);
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 * Gets where a result was spilled.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @return the location, or null if the result is on the heap or there is none
+	 */
+	public synchronized Location locate(UUID taskId) {
+		return disk.get(taskId);
+	}
+
+	/**
+	 * Forces the spilled results to the disk, before a snapshot refers to them.
+	 *
+	 * @throws IOException
+	 *             if a segment could not be forced
+	 */
+	public void force() throws IOException {
+		List<Segment> open;
+		synchronized (this) {
+			open = new ArrayList<Segment>(segments.values());
+		}
+		for (Segment segment : open) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Deletes the segment files and the folder, when the results are no longer needed.
+	 */
+	public synchronized void delete() {
+		for (Segment segment : segments.values()) {
+			segment.delete();
+		}
+		segments.clear();
+		disk.clear();
+		current = null;
+		if (!dir.delete()) {
+			logger.warn("Could not delete result folder {}.", dir);
+		}
+	}
+
+	/**
+	 * Stores the result of a Task, spilling older results to the disk if the budget is exceeded.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @param logs
+	 *            the result, which must not be changed afterwards
+	 * @throws IOException
+	 *             if the results could not be spilled
+	 */
+	public void put(UUID taskId, List<ResultLog> logs) throws IOException {
+		boolean full;
+		synchronized (this) {
+			List<ResultLog> previous = heap.put(taskId, logs);
+			if (previous != null) {
+				heapBytes -= estimate(previous);
+			}
+			free(disk.remove(taskId));
+			heapBytes += estimate(logs);
+			full = heapBytes > heapBudget;
+		}
+		if (full) {
+			spill();
+		}
+	}
+
+	/**
+	 * Gets the result of a Task, reading it from the disk if it was spilled.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @return the result, or null if there is none
+	 * @throws IOException
+	 *             if the result could not be read
+	 */
+	public List<ResultLog> get(UUID taskId) throws IOException {
+		Location location;
+		synchronized (this) {
+			List<ResultLog> logs = heap.get(taskId);
+			if (logs != null) {
+				return logs;
+			}
+			location = disk.get(taskId);
+			if (location == null) {
+				return null;
+			}
+			// Pinned while read, so a concurrent removal does not delete the segment meanwhile
+			location.segment.live++;
+		}
+		try {
+			return location.segment.read(taskId, location);
+		} finally {
+			synchronized (this) {
+				release(location.segment);
+			}
+		}
+	}
+
+	/**
+	 * Removes the result of a Task, reading it from the disk if it was spilled, and frees its
+	 * space.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @return the result, or null if there is none
+	 * @throws IOException
+	 *             if the result could not be read
+	 */
+	public List<ResultLog> remove(UUID taskId) throws IOException {
+		Location location;
+		synchronized (this) {
+			List<ResultLog> logs = heap.remove(taskId);
+			if (logs != null) {
+				heapBytes -= estimate(logs);
+				return logs;
+			}
+			location = disk.remove(taskId);
+			if (location == null) {
+				return null;
+			}
+		}
+		try {
+			return location.segment.read(taskId, location);
+		} finally {
+			synchronized (this) {
+				free(location);
+			}
+		}
+	}
+
+	/**
+	 * Removes the result of a Task and frees its space, without reading it from the disk if it
+	 * was spilled, when it was already retrieved.
+	 *
+	 * @param taskId
+	 *            the Task id
+	 * @return true if the Task had a result
+	 */
+	public synchronized boolean discard(UUID taskId) {
+		List<ResultLog> logs = heap.remove(taskId);
+		if (logs != null) {
+			heapBytes -= estimate(logs);
+			return true;
+		}
+		Location location = disk.remove(taskId);
+		free(location);
+		return location != null;
+	}
+
+	public synchronized boolean containsKey(UUID taskId) {
+		return heap.containsKey(taskId) || disk.containsKey(taskId);
+	}
+
+	/**
+	 * Gets the ids of the Tasks with a result.
+	 *
+	 * @return a copy of the ids
+	 */
+	public synchronized Set<UUID> keySet() {
+		Set<UUID> keys = new LinkedHashSet<UUID>(heap.keySet());
+		keys.addAll(disk.keySet());
+		return keys;
+	}
+
+	public synchronized int size() {
+		return heap.size() + disk.size();
+	}
+
+	/**
+	 * Writes the oldest results on the heap to the current segment, until their size is below
+	 * the low watermark.
+	 *
+	 * @throws IOException
+	 *             if the segment could not be written
+	 */
+	private void spill() throws IOException {
+		synchronized (spillLock) {
+			List<Map.Entry<UUID, List<ResultLog>>> victims;
+			victims = new ArrayList<Map.Entry<UUID, List<ResultLog>>>();
+			synchronized (this) {
+				long target = heapBytes - (long) (heapBudget * LOW_WATERMARK);
+				Iterator<Map.Entry<UUID, List<ResultLog>>> iter = heap.entrySet().iterator();
+				while (target > 0 && iter.hasNext()) {
+					Map.Entry<UUID, List<ResultLog>> entry = iter.next();
+					victims.add(new AbstractMap.SimpleEntry<UUID, List<ResultLog>>(entry));
+					target -= estimate(entry.getValue());
+				}
+			}
+			long spilled = 0;
+			for (Map.Entry<UUID, List<ResultLog>> victim : victims) {
+				Location location = write(victim.getKey(), victim.getValue());
+				synchronized (this) {
+					// The result may have been removed while it was written
+					if (heap.get(victim.getKey()) == victim.getValue()) {
+						heap.remove(victim.getKey());
+						heapBytes -= estimate(victim.getValue());
+						disk.put(victim.getKey(), location);
+						spilled++;
+					} else {
+						free(location);
+					}
+				}
+			}
+			logger.debug("Spilled {} results to disk.", spilled);
+		}
+	}
+
+	/**
+	 * Appends a result to the current segment, starting a new one if it is full. Must be called
+	 * with the spillLock held.
+	 */
+	private Location write(UUID taskId, List<ResultLog> logs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * logs.size() + 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		Encoding.writeUUID(out, taskId);
+		Encoding.writeLogs(out, logs);
+		out.flush();
+		byte[] data = bytes.toByteArray();
+
+		Segment segment;
+		synchronized (this) {
+			if (current == null || current.size >= SEGMENT_SIZE) {
+				current = new Segment(nextSequence++);
+				segments.put(current.sequence, current);
+			}
+			segment = current;
+			// Counted as live while written, so the segment is not deleted meanwhile
+			segment.live++;
+		}
+		try {
+			long offset = segment.append(data);
+			return new Location(segment, offset, data.length);
+		} catch (IOException e) {
+			synchronized (this) {
+				release(segment);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases the space of a spilled result, deleting its segment if no other result in it is
+	 * left. Must be called with the lock of this object held.
+	 */
+	private void free(Location location) {
+		if (location != null) {
+			release(location.segment);
+		}
+	}
+
+	/**
+	 * Releases a result of a segment, deleting the segment if no other result in it is left.
+	 * Must be called with the lock of this object held.
+	 */
+	private void release(Segment segment) {
+		segment.live--;
+		if (segment.live == 0) {
+			// A result being written counts as live, so the segment is not in use
+			if (segment == current) {
+				current = null;
+			}
+			segments.remove(segment.sequence);
+			segment.delete();
+		}
+	}
+
+	/**
+	 * Estimates the heap used by a result.
+	 */
+	private static long estimate(List<ResultLog> logs) {
+		long bytes = 64;
+		for (ResultLog log : logs) {
+			bytes += 56 + 2 * log.getMsg().length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * The position of a spilled result.
+	 */
+	public static class Location {
+
+		private final Segment segment;
+
+		private final long offset;
+
+		private final int length;
+
+		private Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int getSequence() {
+			return segment.sequence;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+	}
+
+	/**
+	 * A segment file, which is only appended to.
+	 */
+	private class Segment {
+
+		private final int sequence;
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		/**
+		 * Number of bytes written.
+		 */
+		private long size;
+
+		/**
+		 * Number of results written and not yet removed.
+		 */
+		private int live;
+
+		public Segment(int sequence) throws IOException {
+			this.sequence = sequence;
+			this.file = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, sequence,
+					SEGMENT_SUFFIX));
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			// A segment left by a previous instance is only read
+			this.size = channel.size();
+			this.live = 0;
+		}
+
+		public long append(byte[] data) throws IOException {
+			long offset = size;
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, offset + buffer.position());
+			}
+			size += data.length;
+			return offset;
+		}
+
+		public List<ResultLog> read(UUID taskId, Location location) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(location.length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+					throw new IOException("Result of task " + taskId + " is truncated");
+				}
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+			UUID id = Encoding.readUUID(in);
+			if (!id.equals(taskId)) {
+				throw new IOException("Result of task " + taskId + " is corrupted");
+			}
+			return Encoding.readLogs(in);
+		}
+
+		public void force() throws IOException {
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Deleted meanwhile, no result in it is left
+			}
+		}
+
+		public void delete() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+			file.delete();
+		}
+
+	}
+
+}
@@ -0,0 +1,473 @@
+package ce288.tasks;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * View of a repository partitioned in several shards, each one a {@link TaskRepository} exported
+ * by its own Server.
+ * 
+ * The Tasks of each file are added to the shard given by a {@link ConsistentHashRing} on
+ * {@link TaskQueue#getKey(Task)}, so the round robin between the files and the split of the
+ * Tasks happen within a single shard. The shard of each Task added or leased through this object
+ * is remembered, so the later calls about the Task are sent to the shard that owns it.
+ * 
+ * The Clients pull from the shards in rotation. When the next shard has no pending Task, the
+ * Client steals from the shard with the most pending Tasks, and only waits for new Tasks when
+ * there are none in either. A shard that cannot be contacted is left out of the rotation for
+ * {@link #RETRY_INTERVAL}, so the Clients keep pulling from the others.
+ */
+public class ShardedTaskRepository implements TaskRepositoryInterface {
+
+	public final static Logger logger = LoggerFactory.getLogger(ShardedTaskRepository.class);
+
+	/**
+	 * Maximum time a Client waits for new Tasks in a single shard before looking at the others.
+	 */
+	public static final long STEAL_INTERVAL = 2000;
+
+	/**
+	 * Time a shard that could not be contacted is left out of the rotation, in milliseconds.
+	 */
+	public static final long RETRY_INTERVAL = 5000;
+
+	private final TaskRepositoryInterface[] shards;
+
+	private final ConsistentHashRing ring;
+
+	/**
+	 * The shard of each Task added or leased through this object, by Task id.
+	 */
+	private final ConcurrentMap<UUID, Integer> owners;
+
+	/**
+	 * The cursors open in each shard for each result cursor, by cursor id, in the order they are
+	 * read.
+	 */
+	private final ConcurrentMap<UUID, Deque<ShardCursor>> cursors;
+
+	/**
+	 * The next shard in the rotation.
+	 */
+	private final AtomicInteger next;
+
+	/**
+	 * The time until which each shard is left out of the rotation.
+	 */
+	private final AtomicLongArray unavailableUntil;
+
+	/**
+	 * Creates the view of the shards.
+	 * 
+	 * @param names
+	 *            the names of the shards, which must be the same, in the same order, in every
+	 *            process
+	 * @param shards
+	 *            the stubs of the shards, in the order of the names
+	 */
+	public ShardedTaskRepository(String[] names, TaskRepositoryInterface[] shards) {
+		this.shards = shards;
+		this.ring = new ConsistentHashRing(names);
+		this.owners = new ConcurrentHashMap<UUID, Integer>();
+		this.cursors = new ConcurrentHashMap<UUID, Deque<ShardCursor>>();
+		this.next = new AtomicInteger(0);
+		this.unavailableUntil = new AtomicLongArray(shards.length);
+		logger.info("Using {} repository shards.", shards.length);
+	}
+
+	@Override
+	public Task getNext(UUID clientId) throws RemoteException {
+		return getNext(clientId, 0);
+	}
+
+	@Override
+	public Task getNext(UUID clientId, long maxWaitMillis) throws RemoteException {
+		List<Task> batch = getNextBatch(clientId, 1, maxWaitMillis);
+		return batch.isEmpty() ? null : batch.get(0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks) throws RemoteException {
+		return getNextBatch(clientId, maxTasks, 0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks, long maxWaitMillis)
+			throws RemoteException {
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		while (true) {
+			int shard = nextAvailable();
+			List<Task> batch = shard >= 0 ? poll(shard, clientId, maxTasks, 0) : null;
+			if (batch == null || batch.isEmpty()) {
+				int busiest = getBusiest(shard);
+				if (busiest >= 0) {
+					List<Task> stolen = poll(busiest, clientId, maxTasks, 0);
+					if (stolen != null) {
+						shard = busiest;
+						batch = stolen;
+					}
+				}
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if ((batch == null || batch.isEmpty()) && remaining > 0) {
+				long wait = Math.min(remaining, STEAL_INTERVAL);
+				batch = shard >= 0 && isAvailable(shard) ? poll(shard, clientId, maxTasks, wait)
+						: null;
+				if (batch == null) {
+					// No shard to wait in, the unavailable ones are tried again later
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return Collections.emptyList();
+					}
+				}
+			}
+			if (batch == null) {
+				batch = Collections.emptyList();
+			}
+			if (!batch.isEmpty() || deadline - System.currentTimeMillis() <= 0) {
+				for (Task task : batch) {
+					owners.put(task.getId(), shard);
+				}
+				return batch;
+			}
+		}
+	}
+
+	/**
+	 * Leases Tasks from a shard, leaving it out of the rotation if it cannot be contacted.
+	 * 
+	 * @return the leased Tasks, or null if the shard could not be contacted
+	 */
+	private List<Task> poll(int shard, UUID clientId, int maxTasks, long maxWaitMillis) {
+		try {
+			return shards[shard].getNextBatch(clientId, maxTasks, maxWaitMillis);
+		} catch (RemoteException e) {
+			unavailable(shard, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Takes the next shard of the rotation that is not left out.
+	 * 
+	 * @return the index of the shard, or -1 if every shard is left out
+	 */
+	private int nextAvailable() {
+		for (int i = 0; i < shards.length; i++) {
+			int shard = (next.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+			if (isAvailable(shard)) {
+				return shard;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isAvailable(int shard) {
+		return System.currentTimeMillis() >= unavailableUntil.get(shard);
+	}
+
+	private void unavailable(int shard, RemoteException e) {
+		logger.warn("Could not contact shard {}, retrying in {} ms: {}", shard, RETRY_INTERVAL,
+				e.getMessage());
+		unavailableUntil.set(shard, System.currentTimeMillis() + RETRY_INTERVAL);
+	}
+
+	@Override
+	public boolean renewLease(UUID clientId, UUID taskId) throws RemoteException {
+		Integer shard = owners.get(taskId);
+		if (shard == null || !shards[shard].renewLease(clientId, taskId)) {
+			owners.remove(taskId);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long reportProgress(UUID clientId, UUID taskId, long bytesDone,
+			List<ResultLog> partialLogs) throws RemoteException {
+		Integer shard = owners.get(taskId);
+		if (shard == null) {
+			return -1;
+		}
+		long limit = shards[shard].reportProgress(clientId, taskId, bytesDone, partialLogs);
+		if (limit < 0) {
+			owners.remove(taskId);
+		}
+		return limit;
+	}
+
+	@Override
+	public void setResult(UUID clientId, UUID taskId, Result result) throws RemoteException {
+		Integer shard = owners.get(taskId);
+		if (shard == null) {
+			logger.warn("Discarded result of task {}, which was not leased from any shard.", taskId);
+			return;
+		}
+		// The owner is kept until the shard has the result, so a failed call can be retried
+		shards[shard].setResult(clientId, taskId, result);
+		owners.remove(taskId);
+	}
+
+	@Override
+	public void setFailure(UUID clientId, UUID taskId, String msg) throws RemoteException {
+		Integer shard = owners.get(taskId);
+		if (shard != null) {
+			shards[shard].setFailure(clientId, taskId, msg);
+			owners.remove(taskId);
+		}
+	}
+
+	@Override
+	public List<ResultLog> getResult(List<UUID> taskIds) throws RemoteException {
+		UUID cursorId = openResultCursor(taskIds);
+		List<ResultLog> logs = new ArrayList<ResultLog>();
+		ResultPage page;
+		do {
+			page = nextResultPage(cursorId, TaskRepository.MAX_PAGE_SIZE);
+			logs.addAll(page.getLogs());
+		} while (!page.isLast());
+		return logs;
+	}
+
+	@Override
+	public UUID openResultCursor(List<UUID> taskIds) throws RemoteException {
+		Map<Integer, List<UUID>> groups = new LinkedHashMap<Integer, List<UUID>>();
+		for (UUID taskId : taskIds) {
+			int shard = getOwner(taskId);
+			if (shard < 0) {
+				throw new RemoteException("There is no result for task ID " + taskId.toString());
+			}
+			List<UUID> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<UUID>();
+				groups.put(shard, group);
+			}
+			group.add(taskId);
+		}
+		Deque<ShardCursor> opened = new ArrayDeque<ShardCursor>(groups.size());
+		try {
+			for (Map.Entry<Integer, List<UUID>> group : groups.entrySet()) {
+				int shard = group.getKey();
+				opened.add(new ShardCursor(shard, shards[shard].openResultCursor(group.getValue()),
+						group.getValue()));
+			}
+		} catch (RemoteException e) {
+			// Leave the results of the other shards in place
+			close(opened);
+			throw e;
+		}
+		UUID cursorId = UUID.randomUUID();
+		cursors.put(cursorId, opened);
+		return cursorId;
+	}
+
+	@Override
+	public ResultPage nextResultPage(UUID cursorId, int maxLogs) throws RemoteException {
+		Deque<ShardCursor> opened = cursors.get(cursorId);
+		if (opened == null) {
+			throw new RemoteException("There is no result cursor " + cursorId.toString());
+		}
+		synchronized (opened) {
+			List<ResultLog> logs = new ArrayList<ResultLog>();
+			if (!opened.isEmpty()) {
+				ShardCursor cursor = opened.peekFirst();
+				ResultPage page = shards[cursor.shard].nextResultPage(cursor.cursorId, maxLogs);
+				logs = page.getLogs();
+				if (page.isLast()) {
+					opened.pollFirst();
+					for (UUID taskId : cursor.taskIds) {
+						owners.remove(taskId);
+					}
+				}
+			}
+			if (opened.isEmpty()) {
+				cursors.remove(cursorId);
+				return new ResultPage(logs, true);
+			}
+			return new ResultPage(logs, false);
+		}
+	}
+
+	@Override
+	public void closeResultCursor(UUID cursorId) throws RemoteException {
+		Deque<ShardCursor> opened = cursors.remove(cursorId);
+		if (opened != null) {
+			synchronized (opened) {
+				close(opened);
+			}
+		}
+	}
+
+	@Override
+	public void addTask(Task task) throws RemoteException {
+		addTask(task, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTask(Task task, int priority) throws RemoteException {
+		int shard = ring.getShard(TaskQueue.getKey(task));
+		shards[shard].addTask(task, priority);
+		owners.put(task.getId(), shard);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks) throws RemoteException {
+		addTasks(tasks, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks, int priority) throws RemoteException {
+		Map<Integer, List<Task>> groups = new LinkedHashMap<Integer, List<Task>>();
+		for (Task task : tasks) {
+			int shard = ring.getShard(TaskQueue.getKey(task));
+			List<Task> group = groups.get(shard);
+			if (group == null) {
+				group = new TaskBatch();
+				groups.put(shard, group);
+			}
+			group.add(task);
+		}
+		for (Map.Entry<Integer, List<Task>> group : groups.entrySet()) {
+			shards[group.getKey()].addTasks(group.getValue(), priority);
+			for (Task task : group.getValue()) {
+				owners.put(task.getId(), group.getKey());
+			}
+		}
+	}
+
+	@Override
+	public TaskStatus getStatus(UUID taskId) throws RemoteException {
+		int shard = getOwner(taskId);
+		if (shard < 0) {
+			return TaskStatus.FAILED;
+		}
+		return shards[shard].getStatus(taskId);
+	}
+
+	@Override
+	public int getPendingCount() throws RemoteException {
+		int count = 0;
+		for (TaskRepositoryInterface shard : shards) {
+			count += shard.getPendingCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the metrics of every shard, with the names prefixed by "shard" and the index of the
+	 * shard, such as "shard0.pending".
+	 */
+	@Override
+	public Map<String, Long> getStatistics() throws RemoteException {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < shards.length; i++) {
+			for (Map.Entry<String, Long> entry : shards[i].getStatistics().entrySet()) {
+				values.put("shard" + i + "." + entry.getKey(), entry.getValue());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Gets the shard that owns a Task. If the Task was not added or leased through this object,
+	 * the shards are asked for it.
+	 * 
+	 * @param taskId
+	 *            the Task id
+	 * @return the index of the shard, or -1 if no shard knows the Task
+	 */
+	private int getOwner(UUID taskId) throws RemoteException {
+		Integer shard = owners.get(taskId);
+		if (shard != null) {
+			return shard;
+		}
+		for (int i = 0; i < shards.length; i++) {
+			if (shards[i].getStatus(taskId) != TaskStatus.FAILED) {
+				owners.put(taskId, i);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the shard with the most pending Tasks. The shards that cannot be contacted are
+	 * skipped, and left out of the rotation.
+	 * 
+	 * @param skip
+	 *            a shard already known to have no pending Task
+	 * @return the index of the shard, or -1 if no other shard has pending Tasks
+	 */
+	private int getBusiest(int skip) {
+		int busiest = -1;
+		int most = 0;
+		for (int i = 0; i < shards.length; i++) {
+			if (i == skip || !isAvailable(i)) {
+				continue;
+			}
+			try {
+				int count = shards[i].getPendingCount();
+				if (count > most) {
+					most = count;
+					busiest = i;
+				}
+			} catch (RemoteException e) {
+				unavailable(i, e);
+			}
+		}
+		return busiest;
+	}
+
+	/**
+	 * Closes the cursors open in the shards. Must be called with the lock of the deque held, if
+	 * it is shared.
+	 */
+	private void close(Deque<ShardCursor> opened) {
+		for (ShardCursor cursor : opened) {
+			try {
+				shards[cursor.shard].closeResultCursor(cursor.cursorId);
+			} catch (RemoteException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+		opened.clear();
+	}
+
+	/**
+	 * A result cursor open in a shard.
+	 */
+	private static class ShardCursor {
+
+		private final int shard;
+
+		private final UUID cursorId;
+
+		private final List<UUID> taskIds;
+
+		public ShardCursor(int shard, UUID cursorId, List<UUID> taskIds) {
+			this.shard = shard;
+			this.cursorId = cursorId;
+			this.taskIds = taskIds;
+		}
+
+	}
+
+}
@@ -1,10 +1,15 @@
 package ce288.tasks;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.net.InetAddress;
 import java.util.UUID;
 
-public class Task implements Serializable {
+public class Task implements Externalizable {
 
 	/**
 	 * 
@@ -23,12 +28,28 @@ public class Task implements Serializable {
 	
 	private InetAddress location;
 
+	/**
+	 * Creates an empty Task, to be filled by {@link #readExternal(ObjectInput)}. The id is not
+	 * generated, as it is overwritten when the Task is read.
+	 */
 	public Task() {
-		this.id = UUID.randomUUID();
 	}
 	
 	public Task(FileFormat format, InetAddress location, String filename, long position, long length) {
-		this();
+		this.id = UUID.randomUUID();
+		this.format = format;
+		this.location = location;
+		this.filename = filename;
+		this.position = position;
+		this.length = length;
+	}
+
+	/**
+	 * Recreates a Task with a known id, as when it is read from the {@link TaskJournal}.
+	 */
+	public Task(UUID id, FileFormat format, InetAddress location, String filename, long position,
+			long length) {
+		this.id = id;
 		this.format = format;
 		this.location = location;
 		this.filename = filename;
@@ -79,6 +100,59 @@ public class Task implements Serializable {
 	public UUID getId() {
 		return id;
 	}
+
+	/**
+	 * Writes the Task with every field inline, as in the {@link TaskJournal}. The Tasks sent in
+	 * batches are written by {@link TaskBatch}, which does not repeat the filenames and
+	 * locations.
+	 * 
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 *             if the Task could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		Encoding.writeUUID(out, id);
+		Encoding.writeFormat(out, format);
+		Encoding.writeString(out, filename == null ? "" : filename);
+		Encoding.writeAddress(out, location);
+		out.writeLong(position);
+		out.writeLong(length);
+	}
+
+	/**
+	 * Reads a Task written by {@link #write(DataOutput)}.
+	 * 
+	 * @param in
+	 *            the input
+	 * @return the Task
+	 * @throws IOException
+	 *             if the Task could not be read
+	 */
+	public static Task read(DataInput in) throws IOException {
+		Task task = new Task();
+		task.readFields(in);
+		return task;
+	}
+
+	private void readFields(DataInput in) throws IOException {
+		id = Encoding.readUUID(in);
+		format = Encoding.readFormat(in);
+		filename = Encoding.readString(in);
+		location = Encoding.readAddress(in);
+		position = in.readLong();
+		length = in.readLong();
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFields(in);
+	}
 	
 	@Override
 	public String toString() {
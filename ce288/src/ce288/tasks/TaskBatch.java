@@ -0,0 +1,134 @@
+package ce288.tasks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A list of {@link Task}s that is serialized with the filenames and locations dictionary-encoded,
+ * so the sections of the same file, which make up most batches, do not repeat them.
+ *
+ * Each filename or location is written inline the first time it appears in the batch, and by its
+ * index in the order of appearance afterwards.
+ */
+public class TaskBatch extends ArrayList<Task> implements Externalizable {
+
+	private static final long serialVersionUID = 3318560532781062541L;
+
+	/**
+	 * Index written before a value that is not yet in the dictionary.
+	 */
+	private static final int NEW_ENTRY = -1;
+
+	public TaskBatch() {
+		super();
+	}
+
+	public TaskBatch(int capacity) {
+		super(capacity);
+	}
+
+	public TaskBatch(Collection<Task> tasks) {
+		super(tasks);
+	}
+
+	/**
+	 * Writes the Tasks, preceded by their number.
+	 *
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 *             if the Tasks could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		Map<String, Integer> filenames = new HashMap<String, Integer>();
+		Map<InetAddress, Integer> locations = new HashMap<InetAddress, Integer>();
+		out.writeInt(size());
+		for (Task task : this) {
+			Encoding.writeUUID(out, task.getId());
+			Encoding.writeFormat(out, task.getFormat());
+			String filename = task.getFilename() == null ? "" : task.getFilename();
+			Integer index = filenames.get(filename);
+			if (index == null) {
+				filenames.put(filename, filenames.size());
+				out.writeInt(NEW_ENTRY);
+				Encoding.writeString(out, filename);
+			} else {
+				out.writeInt(index);
+			}
+			index = locations.get(task.getLocation());
+			if (index == null) {
+				locations.put(task.getLocation(), locations.size());
+				out.writeInt(NEW_ENTRY);
+				Encoding.writeAddress(out, task.getLocation());
+			} else {
+				out.writeInt(index);
+			}
+			out.writeLong(task.getPosition());
+			out.writeLong(task.getLength());
+		}
+	}
+
+	/**
+	 * Reads the Tasks written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input
+	 * @return the Tasks
+	 * @throws IOException
+	 *             if the Tasks could not be read
+	 */
+	public static TaskBatch read(DataInput in) throws IOException {
+		TaskBatch batch = new TaskBatch();
+		batch.readTasks(in);
+		return batch;
+	}
+
+	private void readTasks(DataInput in) throws IOException {
+		int count = in.readInt();
+		List<String> filenames = new ArrayList<String>();
+		List<InetAddress> locations = new ArrayList<InetAddress>();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			UUID id = Encoding.readUUID(in);
+			FileFormat format = Encoding.readFormat(in);
+			int index = in.readInt();
+			if (index == NEW_ENTRY) {
+				filenames.add(Encoding.readString(in));
+				index = filenames.size() - 1;
+			}
+			String filename = filenames.get(index);
+			index = in.readInt();
+			if (index == NEW_ENTRY) {
+				locations.add(Encoding.readAddress(in));
+				index = locations.size() - 1;
+			}
+			InetAddress location = locations.get(index);
+			long position = in.readLong();
+			long length = in.readLong();
+			add(new Task(id, format, location, filename, position, length));
+		}
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		clear();
+		readTasks(in);
+	}
+
+}
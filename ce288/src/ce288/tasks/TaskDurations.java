@@ -0,0 +1,96 @@
+package ce288.tasks;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent processing times of the Tasks of each file, identified by
+ * {@link TaskQueue#getKey(Task)}, from which the median is taken to detect the stragglers.
+ */
+public class TaskDurations {
+
+	/**
+	 * Number of processing times kept for each file.
+	 */
+	private final int maxSamples;
+
+	/**
+	 * Number of processing times a file must have before its median is meaningful.
+	 */
+	private final int minSamples;
+
+	private final Map<String, Samples> files;
+
+	public TaskDurations(int maxSamples, int minSamples) {
+		this.maxSamples = maxSamples;
+		this.minSamples = minSamples;
+		this.files = new HashMap<String, Samples>();
+	}
+
+	/**
+	 * Adds the processing time of a finished Task, replacing the oldest one of its file if there
+	 * are already maxSamples.
+	 * 
+	 * @param key
+	 *            the file of the Task
+	 * @param millis
+	 *            the processing time
+	 */
+	public synchronized void add(String key, long millis) {
+		Samples samples = files.get(key);
+		if (samples == null) {
+			samples = new Samples(maxSamples);
+			files.put(key, samples);
+		}
+		samples.values[samples.next] = millis;
+		samples.next = (samples.next + 1) % maxSamples;
+		samples.count = Math.min(samples.count + 1, maxSamples);
+	}
+
+	/**
+	 * Forgets the processing times of the files that are not in the keys, whose Tasks are gone.
+	 * 
+	 * @param keys
+	 *            the files with pending or executing Tasks
+	 */
+	public synchronized void retain(Collection<String> keys) {
+		files.keySet().retainAll(keys);
+	}
+
+	/**
+	 * Gets the median of the processing times of a file.
+	 * 
+	 * @param key
+	 *            the file
+	 * @return the median in milliseconds, or -1 if the file has less than minSamples
+	 */
+	public synchronized long median(String key) {
+		Samples samples = files.get(key);
+		if (samples == null || samples.count < minSamples) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples.values, samples.count);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * A circular buffer of processing times.
+	 */
+	private static class Samples {
+
+		private final long[] values;
+
+		private int count = 0;
+
+		private int next = 0;
+
+		public Samples(int size) {
+			this.values = new long[size];
+		}
+
+	}
+
+}
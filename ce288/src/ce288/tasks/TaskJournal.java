@@ -0,0 +1,629 @@
+package ce288.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Result.ResultLog;
+
+/**
+ * Append-only journal of the changes of the {@link TaskRepository}, from which the state of the
+ * repository is rebuilt after a restart of the Server.
+ *
+ * The events are appended to memory-mapped segment files, so they survive a crash of the JVM as
+ * soon as they are written. The segments are forced to the disk by a background thread every
+ * {@link #FLUSH_INTERVAL} milliseconds, committing every event written in the meantime at once,
+ * so the callers never wait for the disk. After {@link #SNAPSHOT_SEGMENTS} segments, the state
+ * of the repository is written to a snapshot file and the older segments are deleted. The
+ * results spilled by the {@link ResultStore} are only referred to by their location in the
+ * snapshot, so they are not read and written again each time.
+ *
+ * Each record has the layout [length][crc32][type][data], where length counts the type and the
+ * data. A zero length marks the end of a segment, and a record whose checksum does not match is
+ * considered a torn write and ends the replay of its file.
+ */
+public class TaskJournal {
+
+	public final static Logger logger = LoggerFactory.getLogger(TaskJournal.class);
+
+	/**
+	 * Size of each segment file, 64MB.
+	 */
+	public static final int SEGMENT_SIZE = 67108864;
+
+	/**
+	 * Period of the group commit, in milliseconds.
+	 */
+	public static final long FLUSH_INTERVAL = 50;
+
+	/**
+	 * Number of segments written before a new snapshot is taken.
+	 */
+	public static final int SNAPSHOT_SEGMENTS = 4;
+
+	private static final byte ADDED = 1;
+	private static final byte LEASED = 2;
+	private static final byte FINISHED = 3;
+	private static final byte FAILED = 4;
+	private static final byte RETRIEVED = 5;
+	private static final byte PROGRESS = 6;
+	private static final byte CHECKPOINT = 7;
+	private static final byte SPLIT = 8;
+	private static final byte SPILLED = 9;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+
+	/**
+	 * Receives the events read from the journal.
+	 */
+	public interface Replayer {
+
+		public void added(Task task, int priority) throws IOException;
+
+		public void leased(UUID taskId, UUID clientId) throws IOException;
+
+		public void finished(UUID taskId, List<ResultLog> logs) throws IOException;
+
+		public void failed(UUID taskId) throws IOException;
+
+		public void retrieved(UUID taskId) throws IOException;
+
+		public void progress(UUID taskId, long position, List<ResultLog> logs) throws IOException;
+
+		public void checkpoint(UUID taskId, long position, List<ResultLog> logs) throws IOException;
+
+		public void split(UUID taskId, UUID childId, long length) throws IOException;
+
+		/**
+		 * Called for a finished Task whose result is in a segment of the {@link ResultStore}.
+		 */
+		public void spilled(UUID taskId, int segment, long offset, int length) throws IOException;
+
+	}
+
+	private final File dir;
+
+	/**
+	 * Sequence number of the segment being written.
+	 */
+	private volatile int sequence;
+
+	/**
+	 * Sequence number of the segment that started after the last snapshot.
+	 */
+	private volatile int snapshotSequence;
+
+	private RandomAccessFile file;
+
+	private MappedByteBuffer segment;
+
+	/**
+	 * Whether there are events not yet forced to the disk.
+	 */
+	private boolean dirty;
+
+	private volatile boolean closed;
+
+	/**
+	 * Opens the journal kept in the folder, creating the folder if needed.
+	 *
+	 * @param dir
+	 *            the folder of the segment and snapshot files
+	 * @throws IOException
+	 *             if the folder could not be created
+	 */
+	public TaskJournal(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create journal folder " + dir);
+		}
+		this.sequence = 0;
+		this.snapshotSequence = 0;
+	}
+
+	/**
+	 * Reads the last snapshot and the segments written after it, in order.
+	 *
+	 * @param replayer
+	 *            receives the events
+	 * @throws IOException
+	 *             if the files could not be read
+	 */
+	public void replay(Replayer replayer) throws IOException {
+		int snapshot = -1;
+		for (int seq : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			snapshot = Math.max(snapshot, seq);
+		}
+		int count = 0;
+		if (snapshot >= 0) {
+			count += replay(new File(dir, name(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX)),
+					replayer);
+		}
+		for (int seq : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (seq >= snapshot) {
+				count += replay(new File(dir, name(SEGMENT_PREFIX, seq, SEGMENT_SUFFIX)), replayer);
+			}
+			sequence = Math.max(sequence, seq + 1);
+		}
+		sequence = Math.max(sequence, snapshot + 1);
+		logger.info("Replayed {} events from journal {}.", count, dir);
+	}
+
+	/**
+	 * Opens a new segment and starts the thread that forces the written events to the disk and
+	 * takes the snapshots.
+	 *
+	 * @param snapshotter
+	 *            called by the thread when a new snapshot is due, which must call
+	 *            {@link #roll()} and {@link #writeSnapshot} while no event is written
+	 * @throws IOException
+	 *             if the segment could not be created
+	 */
+	public void start(final Runnable snapshotter) throws IOException {
+		synchronized (this) {
+			openSegment(SEGMENT_SIZE);
+		}
+		Thread flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(FLUSH_INTERVAL);
+						flush();
+						if (sequence - snapshotSequence >= SNAPSHOT_SEGMENTS) {
+							snapshotter.run();
+						}
+					} catch (InterruptedException e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+		}, "JournalFlusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Closes the current segment and opens the next one.
+	 *
+	 * @return the sequence number of the new segment
+	 * @throws IOException
+	 *             if the segment could not be created
+	 */
+	public synchronized int roll() throws IOException {
+		openSegment(SEGMENT_SIZE);
+		return sequence;
+	}
+
+	/**
+	 * Writes the state of the repository as it was when the segment seq was opened, and deletes
+	 * the files made obsolete by it.
+	 *
+	 * @param seq
+	 *            the sequence number returned by {@link #roll()}
+	 * @param pending
+	 *            the pending Tasks, with the priorities of their files
+	 * @param executing
+	 *            the executing Tasks
+	 * @param checkpoints
+	 *            the progress of the unfinished Tasks, by Task id
+	 * @param children
+	 *            the Tasks split from each Task whose results were not yet retrieved
+	 * @param finished
+	 *            the Tasks whose results were not yet retrieved
+	 * @param results
+	 *            where the results are read from, skipping those retrieved in the meantime
+	 * @throws IOException
+	 *             if the snapshot could not be written, or if a result could not be read
+	 */
+	public void writeSnapshot(int seq, Map<Task, Integer> pending, Collection<Task> executing,
+			Map<UUID, Checkpoint> checkpoints, Map<UUID, List<UUID>> children,
+			Collection<UUID> finished, ResultStore results) throws IOException {
+		File tmp = new File(dir, name(SNAPSHOT_PREFIX, seq, ".tmp"));
+		FileOutputStream stream = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			for (Map.Entry<Task, Integer> entry : pending.entrySet()) {
+				writeRecord(out, encodeAdded(entry.getKey(), entry.getValue()));
+			}
+			for (Task task : executing) {
+				writeRecord(out, encodeAdded(task, 0));
+				writeRecord(out, encodeId(LEASED, task.getId(), null));
+			}
+			for (Map.Entry<UUID, Checkpoint> entry : checkpoints.entrySet()) {
+				Checkpoint checkpoint = entry.getValue();
+				writeRecord(out, encodeProgress(CHECKPOINT, entry.getKey(),
+						checkpoint.getPosition(), checkpoint.getLogs()));
+			}
+			for (Map.Entry<UUID, List<UUID>> entry : children.entrySet()) {
+				for (UUID childId : entry.getValue()) {
+					writeRecord(out, encodeSplit(entry.getKey(), childId, -1));
+				}
+			}
+			for (UUID taskId : finished) {
+				ResultStore.Location location = results.locate(taskId);
+				if (location != null) {
+					writeRecord(out, encodeSpilled(taskId, location));
+					continue;
+				}
+				List<ResultLog> logs;
+				try {
+					logs = results.get(taskId);
+				} catch (IOException e) {
+					// Spilled and then removed while being read, or really lost
+					if (results.containsKey(taskId)) {
+						throw e;
+					}
+					logs = null;
+				}
+				if (logs != null) {
+					writeRecord(out, encodeFinished(taskId, logs));
+				}
+			}
+			// The results referred to must be on the disk before the segments are deleted
+			results.force();
+			out.writeInt(0);
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		File snapshot = new File(dir, name(SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX));
+		if (!tmp.renameTo(snapshot)) {
+			throw new IOException("Could not rename snapshot " + tmp);
+		}
+		snapshotSequence = seq;
+		for (int old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if (old < seq) {
+				new File(dir, name(SNAPSHOT_PREFIX, old, SNAPSHOT_SUFFIX)).delete();
+			}
+		}
+		for (int old : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (old < seq) {
+				new File(dir, name(SEGMENT_PREFIX, old, SEGMENT_SUFFIX)).delete();
+			}
+		}
+		logger.info("Wrote journal snapshot {} with {} pending, {} executing and {} finished tasks.",
+				seq, pending.size(), executing.size(), finished.size());
+	}
+
+	public void added(Task task, int priority) throws IOException {
+		append(encodeAdded(task, priority));
+	}
+
+	public void added(List<Task> tasks, int priority) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>(tasks.size());
+		for (Task task : tasks) {
+			records.add(encodeAdded(task, priority));
+		}
+		synchronized (this) {
+			for (byte[] data : records) {
+				append(data);
+			}
+		}
+	}
+
+	public void leased(UUID taskId, UUID clientId) throws IOException {
+		append(encodeId(LEASED, taskId, clientId));
+	}
+
+	public void finished(UUID taskId, List<ResultLog> logs) throws IOException {
+		append(encodeFinished(taskId, logs));
+	}
+
+	public void failed(UUID taskId) throws IOException {
+		append(encodeId(FAILED, taskId, null));
+	}
+
+	public void retrieved(UUID taskId) throws IOException {
+		append(encodeId(RETRIEVED, taskId, null));
+	}
+
+	/**
+	 * Records the progress of a Task since its last checkpoint.
+	 */
+	public void progress(UUID taskId, long position, List<ResultLog> logs) throws IOException {
+		append(encodeProgress(PROGRESS, taskId, position, logs));
+	}
+
+	/**
+	 * Records the whole checkpoint of a Task, replacing the progress recorded before.
+	 */
+	public void checkpoint(UUID taskId, long position, List<ResultLog> logs) throws IOException {
+		append(encodeProgress(CHECKPOINT, taskId, position, logs));
+	}
+
+	/**
+	 * Records that the end of a Task was moved to a new Task, added before.
+	 * 
+	 * @param length
+	 *            the new length of the Task, or -1 if it is unchanged
+	 */
+	public void split(UUID taskId, UUID childId, long length) throws IOException {
+		append(encodeSplit(taskId, childId, length));
+	}
+
+	/**
+	 * Forces the pending events to the disk and stops the background thread.
+	 */
+	public void close() {
+		closed = true;
+		flush();
+	}
+
+	/**
+	 * Forces the events written since the last call to the disk.
+	 */
+	private void flush() {
+		MappedByteBuffer current;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			current = segment;
+		}
+		// Events written meanwhile are committed by the next call
+		current.force();
+	}
+
+	/**
+	 * Appends a record to the current segment, opening a new one if it is full.
+	 *
+	 * @param data
+	 *            the type and data of the record
+	 * @throws IOException
+	 *             if a new segment could not be created
+	 */
+	private synchronized void append(byte[] data) throws IOException {
+		if (segment == null) {
+			throw new IOException("Journal is not started");
+		}
+		// Keep room for the end mark
+		if (segment.remaining() < HEADER_SIZE + data.length + 4) {
+			openSegment(Math.max(SEGMENT_SIZE, HEADER_SIZE + data.length + 4));
+		}
+		segment.putInt(data.length);
+		segment.putInt(checksum(data));
+		segment.put(data);
+		dirty = true;
+	}
+
+	/**
+	 * Forces and closes the current segment, and maps a new one.
+	 *
+	 * @param size
+	 *            the size of the new segment
+	 * @throws IOException
+	 *             if the segment could not be created
+	 */
+	private void openSegment(int size) throws IOException {
+		if (segment != null) {
+			segment.force();
+			file.close();
+			sequence++;
+		}
+		File name = new File(dir, name(SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+		file = new RandomAccessFile(name, "rw");
+		file.setLength(size);
+		segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		dirty = false;
+		logger.debug("Opened journal segment {}.", name);
+	}
+
+	/**
+	 * Reads the records of a segment or snapshot file.
+	 *
+	 * @return the number of records read
+	 */
+	private int replay(File name, Replayer replayer) throws IOException {
+		int count = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0) {
+					break;
+				}
+				int crc = in.readInt();
+				byte[] data = new byte[length];
+				in.readFully(data);
+				if (checksum(data) != crc) {
+					logger.warn("Discarding torn record at the end of {}.", name);
+					break;
+				}
+				decode(data, replayer);
+				count++;
+			}
+		} catch (EOFException e) {
+			logger.warn("Journal file {} ends with an incomplete record.", name);
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	private void decode(byte[] data, Replayer replayer) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		byte type = in.readByte();
+		switch (type) {
+		case ADDED:
+			int priority = in.readInt();
+			replayer.added(Task.read(in), priority);
+			break;
+		case LEASED:
+			UUID taskId = Encoding.readUUID(in);
+			replayer.leased(taskId, in.readBoolean() ? Encoding.readUUID(in) : null);
+			break;
+		case FINISHED:
+			UUID finishedId = Encoding.readUUID(in);
+			replayer.finished(finishedId, Encoding.readLogs(in));
+			break;
+		case FAILED:
+			replayer.failed(Encoding.readUUID(in));
+			break;
+		case RETRIEVED:
+			replayer.retrieved(Encoding.readUUID(in));
+			break;
+		case PROGRESS:
+			UUID progressId = Encoding.readUUID(in);
+			long position = in.readLong();
+			replayer.progress(progressId, position, Encoding.readLogs(in));
+			break;
+		case CHECKPOINT:
+			UUID checkpointId = Encoding.readUUID(in);
+			long checkpoint = in.readLong();
+			replayer.checkpoint(checkpointId, checkpoint, Encoding.readLogs(in));
+			break;
+		case SPLIT:
+			UUID splitId = Encoding.readUUID(in);
+			UUID childId = Encoding.readUUID(in);
+			replayer.split(splitId, childId, in.readLong());
+			break;
+		case SPILLED:
+			UUID spilledId = Encoding.readUUID(in);
+			int segment = in.readInt();
+			long offset = in.readLong();
+			replayer.spilled(spilledId, segment, offset, in.readInt());
+			break;
+		default:
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	private static byte[] encodeAdded(Task task, int priority) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ADDED);
+		out.writeInt(priority);
+		task.write(out);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeId(byte type, UUID taskId, UUID clientId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		Encoding.writeUUID(out, taskId);
+		if (type == LEASED) {
+			out.writeBoolean(clientId != null);
+			if (clientId != null) {
+				Encoding.writeUUID(out, clientId);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeFinished(UUID taskId, List<ResultLog> logs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * logs.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FINISHED);
+		Encoding.writeUUID(out, taskId);
+		Encoding.writeLogs(out, logs);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeSpilled(UUID taskId, ResultStore.Location location)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SPILLED);
+		Encoding.writeUUID(out, taskId);
+		out.writeInt(location.getSequence());
+		out.writeLong(location.getOffset());
+		out.writeInt(location.getLength());
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeProgress(byte type, UUID taskId, long position,
+			List<ResultLog> logs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * logs.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		Encoding.writeUUID(out, taskId);
+		out.writeLong(position);
+		Encoding.writeLogs(out, logs);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeSplit(UUID taskId, UUID childId, long length)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SPLIT);
+		Encoding.writeUUID(out, taskId);
+		Encoding.writeUUID(out, childId);
+		out.writeLong(length);
+		return bytes.toByteArray();
+	}
+
+	private static void writeRecord(DataOutput out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.writeInt(checksum(data));
+		out.write(data);
+	}
+
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Lists the sequence numbers of the files with the prefix and suffix, in increasing order.
+	 */
+	private int[] list(String prefix, String suffix) {
+		List<Integer> found = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						found.add(Integer.parseInt(name.substring(prefix.length(), name.length()
+								- suffix.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring file {} in journal folder.", name);
+					}
+				}
+			}
+		}
+		int[] sequences = new int[found.size()];
+		for (int i = 0; i < sequences.length; i++) {
+			sequences[i] = found.get(i);
+		}
+		Arrays.sort(sequences);
+		return sequences;
+	}
+
+	private static String name(String prefix, int seq, String suffix) {
+		return String.format("%s%08d%s", prefix, seq, suffix);
+	}
+
+}
@@ -0,0 +1,449 @@
+package ce288.tasks;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ce288.metrics.Histogram;
+
+/**
+ * Queue of the {@link Task}s waiting for a Client, on which a Client may wait until some Task
+ * is available.
+ *
+ * The Tasks of each source file, identified by {@link Task#getLocation()} and
+ * {@link Task#getFilename()}, are kept in a separate FIFO. The files are served by deficit round
+ * robin: at its turn each file may hand out Tasks totalling {@link #QUANTUM} bytes times its
+ * priority, so a file added later does not wait for all the sections of a huge file queued
+ * before it.
+ *
+ * The queue of a file is dropped as soon as it has no pending Task, so the queues kept only
+ * depend on the files with pending Tasks. The priorities of the last {@link #RECENT_FILES} files
+ * dropped are kept, so a Task requeued later without a priority is served with the one of its
+ * file.
+ *
+ * The queue has its own lock, which is only held to insert or remove Tasks, so it does not
+ * serialize the other operations of the {@link TaskRepository}.
+ */
+public class TaskQueue {
+
+	/**
+	 * Priority of the files added without an explicit one.
+	 */
+	public static final int DEFAULT_PRIORITY = 1;
+
+	/**
+	 * Number of bytes a file with priority 1 may hand out at each turn.
+	 */
+	public static final long QUANTUM = 10485760;
+
+	/**
+	 * Number of files without pending Tasks whose priority is kept.
+	 */
+	public static final int RECENT_FILES = 1024;
+
+	/**
+	 * The queue of each file with pending Tasks, with the key given by {@link #getKey(Task)}.
+	 */
+	private final Map<String, FileQueue> files;
+
+	/**
+	 * The priorities other than the default of the files whose queue was dropped, from the least
+	 * to the most recently dropped.
+	 */
+	private final Map<String, Integer> recentPriorities;
+
+	/**
+	 * The files that have pending Tasks, in the order they are served. The head is the file whose
+	 * turn it is.
+	 */
+	private final Deque<FileQueue> active;
+
+	private int size;
+
+	private final ReentrantLock lock;
+
+	/**
+	 * Signaled each time a Task is inserted.
+	 */
+	private final Condition notEmpty;
+
+	/**
+	 * Time, in milliseconds, each removed Task spent in the queue since it was last inserted.
+	 */
+	private final Histogram waitTimes;
+
+	public TaskQueue() {
+		files = new HashMap<String, FileQueue>();
+		recentPriorities = new LinkedHashMap<String, Integer>(16, 0.75f, false) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > RECENT_FILES;
+			}
+
+		};
+		active = new ArrayDeque<FileQueue>();
+		size = 0;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		waitTimes = new Histogram();
+	}
+
+	/**
+	 * Appends a new Task to the tail of the queue of its file.
+	 *
+	 * @param task
+	 *            the Task
+	 */
+	public void add(Task task) {
+		add(task, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Appends a new Task to the tail of the queue of its file.
+	 *
+	 * @param task
+	 *            the Task
+	 * @param priority
+	 *            the weight of the file, at least 1, or 0 to keep the current one
+	 */
+	public void add(Task task, int priority) {
+		lock.lock();
+		try {
+			FileQueue queue = getQueue(task, priority);
+			queue.tasks.addLast(new Entry(task));
+			activate(queue, false);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the Tasks to the tail of the queues of their files, in order, under a single
+	 * acquisition of the lock, so no Client gets a Task before the others are in the queue.
+	 *
+	 * @param batch
+	 *            the Tasks
+	 * @param priority
+	 *            the weight of the files, at least 1
+	 */
+	public void addAll(Collection<Task> batch, int priority) {
+		lock.lock();
+		try {
+			for (Task task : batch) {
+				FileQueue queue = getQueue(task, priority);
+				queue.tasks.addLast(new Entry(task));
+				activate(queue, false);
+				size++;
+			}
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Inserts a Task at the head of the queue of its file, so it is the next one of the file to
+	 * be processed. If the file had no other pending Task, it is served before the other files.
+	 *
+	 * @param task
+	 *            the Task
+	 */
+	public void addFirst(Task task) {
+		lock.lock();
+		try {
+			FileQueue queue = getQueue(task, 0);
+			queue.tasks.addFirst(new Entry(task));
+			activate(queue, true);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next Task, without waiting.
+	 *
+	 * @return the Task, or null if the queue is empty
+	 */
+	public Task poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes up to maxTasks Tasks, without waiting.
+	 *
+	 * @param batch
+	 *            the list where the removed Tasks are appended to
+	 * @param maxTasks
+	 *            the maximum number of Tasks to remove
+	 * @return the number of Tasks removed
+	 */
+	public int poll(List<Task> batch, int maxTasks) {
+		int count = 0;
+		lock.lock();
+		try {
+			Task task;
+			while (count < maxTasks && (task = next()) != null) {
+				batch.add(task);
+				count++;
+			}
+			// The signal may have been consumed by a waiter that did not take every Task
+			if (size > 0) {
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Waits up to maxWaitMillis for the queue to have some Task. The Tasks are not removed, so
+	 * another Client may get them before the caller does.
+	 *
+	 * @param maxWaitMillis
+	 *            the maximum time to wait if the queue is empty
+	 * @return true if the queue has some Task
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean await(long maxWaitMillis) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		lock.lockInterruptibly();
+		try {
+			while (size == 0 && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return size > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the Tasks in the queue, in the order of each file, with the priority of their file.
+	 *
+	 * @return the Tasks and the priorities
+	 */
+	public Map<Task, Integer> snapshot() {
+		lock.lock();
+		try {
+			Map<Task, Integer> copy = new LinkedHashMap<Task, Integer>(size * 2);
+			for (FileQueue queue : active) {
+				for (Entry entry : queue.tasks) {
+					copy.put(entry.task, queue.priority);
+				}
+			}
+			return copy;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the keys of the files with pending Tasks.
+	 *
+	 * @return a copy of the keys
+	 */
+	public Set<String> getActiveKeys() {
+		lock.lock();
+		try {
+			return new HashSet<String>(files.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of Tasks in the queue.
+	 *
+	 * @return the number of Tasks
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the distribution of the time, in milliseconds, the removed Tasks spent in the queue.
+	 * 
+	 * @return the wait times
+	 */
+	public Histogram getWaitTimes() {
+		return waitTimes;
+	}
+
+	/**
+	 * Removes the next Task according to the deficit round robin. Must be called with the lock
+	 * held.
+	 *
+	 * @return the Task, or null if the queue is empty
+	 */
+	private Task next() {
+		while (!active.isEmpty()) {
+			FileQueue queue = active.peekFirst();
+			if (!queue.turn) {
+				queue.deficit += QUANTUM * queue.priority;
+				queue.turn = true;
+			}
+			Entry entry = queue.tasks.peekFirst();
+			long cost = Math.max(1, entry.task.getLength());
+			if (queue.deficit >= cost) {
+				queue.deficit -= cost;
+				queue.tasks.pollFirst();
+				size--;
+				if (queue.tasks.isEmpty()) {
+					active.pollFirst();
+					drop(queue);
+				}
+				waitTimes.record(System.currentTimeMillis() - entry.queued);
+				return entry.task;
+			}
+			// The turn of this file is over, it is served again after all the others
+			queue.turn = false;
+			active.addLast(active.pollFirst());
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the queue of the file of the Task, creating it if needed. Must be called with the
+	 * lock held.
+	 *
+	 * @param task
+	 *            the Task
+	 * @param priority
+	 *            the new priority of the file, or 0 to keep the current one
+	 * @return the queue of the file
+	 */
+	private FileQueue getQueue(Task task, int priority) {
+		String key = getKey(task);
+		FileQueue queue = files.get(key);
+		if (queue == null) {
+			queue = new FileQueue(key);
+			Integer recent = recentPriorities.remove(key);
+			if (recent != null) {
+				queue.priority = recent;
+			}
+			files.put(key, queue);
+		}
+		if (priority > 0) {
+			queue.priority = priority;
+		}
+		return queue;
+	}
+
+	/**
+	 * Drops the queue of a file once its last Task is removed, keeping its priority if it is
+	 * not the default one. Must be called with the lock held.
+	 *
+	 * @param queue
+	 *            the empty queue of the file
+	 */
+	private void drop(FileQueue queue) {
+		files.remove(queue.key);
+		if (queue.priority != DEFAULT_PRIORITY) {
+			recentPriorities.put(queue.key, queue.priority);
+		}
+	}
+
+	/**
+	 * Inserts the queue of a file in the round robin, if it is not already there. Must be called
+	 * with the lock held, after a Task is inserted in the queue.
+	 *
+	 * @param queue
+	 *            the queue of the file
+	 * @param first
+	 *            true if the file must be served before the others
+	 */
+	private void activate(FileQueue queue, boolean first) {
+		if (queue.tasks.size() > 1) {
+			return;
+		}
+		if (first) {
+			active.addFirst(queue);
+		} else {
+			active.addLast(queue);
+		}
+	}
+
+	/**
+	 * Identifies the source file of a Task.
+	 *
+	 * @param task
+	 *            the Task
+	 * @return the location of the file followed by its name
+	 */
+	public static String getKey(Task task) {
+		return String.valueOf(task.getLocation()) + "/" + task.getFilename();
+	}
+
+	/**
+	 * A pending Task and the time it was inserted.
+	 */
+	private static class Entry {
+
+		private final Task task;
+
+		private final long queued;
+
+		public Entry(Task task) {
+			this.task = task;
+			this.queued = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * The pending Tasks of a file and its state in the round robin.
+	 */
+	private static class FileQueue {
+
+		private final String key;
+
+		private final Deque<Entry> tasks = new ArrayDeque<Entry>();
+
+		private int priority = DEFAULT_PRIORITY;
+
+		/**
+		 * Number of bytes the file may still hand out in the current turn.
+		 */
+		private long deficit = 0;
+
+		/**
+		 * Whether the file is at the head of the round robin and already received the quantum
+		 * of its turn.
+		 */
+		private boolean turn = false;
+
+		public FileQueue(String key) {
+			this.key = key;
+		}
+
+	}
+
+}
@@ -1,19 +1,38 @@
 package ce288.tasks;
 
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ce288.metrics.Counter;
+import ce288.metrics.Gauge;
+import ce288.metrics.Histogram;
+import ce288.metrics.Meter;
+import ce288.metrics.Metrics;
 import ce288.tasks.Result.ResultLog;
 
 public class TaskRepository extends UnicastRemoteObject implements TaskRepositoryInterface {
@@ -22,8 +41,102 @@ public class TaskRepository extends UnicastRemoteObject implements TaskRepositor
 
 	public final static Logger logger = LoggerFactory.getLogger(TaskRepository.class);
 
+	/**
+	 * Timeout of a Task while there is no estimate of the throughput of the Clients.
+	 */
 	public static final long TASK_TIMEOUT = 100000;
 
+	/**
+	 * Bounds of the timeout derived from the length of a Task.
+	 */
+	public static final long MIN_TASK_TIMEOUT = 5000;
+	public static final long MAX_TASK_TIMEOUT = 600000;
+
+	/**
+	 * How many times the expected processing time a Task is given before expiring.
+	 */
+	public static final int TIMEOUT_FACTOR = 3;
+
+	/**
+	 * Time added to the timeout of a Task each time its Client renews the lease.
+	 */
+	public static final long LEASE_RENEWAL = 10000;
+
+	/**
+	 * Time after the last renewal of a lease after which its Client is taken as dead, even if
+	 * the timeout of the Task is later, so a crashed Client is detected in seconds.
+	 */
+	public static final long LIVENESS_TIMEOUT = 2 * LEASE_RENEWAL;
+
+	/**
+	 * Default maximum time between the expiration of a Task and its return to pendingTasks.
+	 */
+	public static final long EXPIRATION_PRECISION = 1000;
+
+	/**
+	 * Maximum number of Tasks handed to a Client by a single call to getNextBatch().
+	 */
+	public static final int MAX_BATCH_SIZE = 64;
+
+	/**
+	 * Maximum time a Client may wait in getNext() or getNextBatch() for a Task to be available.
+	 */
+	public static final long MAX_WAIT = 30000;
+
+	/**
+	 * How many times the median processing time of its file a Task must be running before a
+	 * backup is leased to an idle Client.
+	 */
+	public static final int SPECULATION_FACTOR = 2;
+
+	/**
+	 * Minimum time a Task must be running before a backup is leased, so short Tasks are not
+	 * processed twice.
+	 */
+	public static final long MIN_SPECULATION_DELAY = 5000;
+
+	/**
+	 * Period at which the executing Tasks are scanned for stragglers and for Tasks to split, and
+	 * at which the Clients waiting for a Task look for them.
+	 */
+	public static final long SPECULATION_INTERVAL = 1000;
+
+	/**
+	 * Minimum number of bytes of each part of a split Task.
+	 */
+	public static final long MIN_SPLIT_SIZE = 1048576;
+
+	/**
+	 * Number of locks guarding the leases of the Tasks.
+	 */
+	private static final int LEASE_LOCKS = 64;
+
+	/**
+	 * Time after which a result cursor that is not read is discarded.
+	 */
+	public static final long CURSOR_TIMEOUT = 600000;
+
+	/**
+	 * Maximum number of logs in a page of a result cursor.
+	 */
+	public static final int MAX_PAGE_SIZE = 100000;
+
+	/**
+	 * Time after its last request to the repository a Client is no longer counted as active.
+	 */
+	public static final long ACTIVE_CLIENT_PERIOD = 60000;
+
+	/**
+	 * Name of the metric with the number of active Clients.
+	 */
+	public static final String ACTIVE_CLIENTS = "activeClients";
+
+	/**
+	 * Name of the metric with the estimated rate, in bytes per second, at which a Client
+	 * processes a file, or 0 while there is no estimate.
+	 */
+	public static final String CLIENT_THROUGHPUT = "clientThroughput";
+
 	/**
 	 * Store the Tasks that are being processed by some Client.
 	 * 
@@ -31,127 +144,1362 @@ public class TaskRepository extends UnicastRemoteObject implements TaskRepositor
 	 * ExecutionInfo contains the Client which got the Task, the time when it occured, the Task 
 	 * object itself, and the timeout of the processing.
 	 */
-	private Map<UUID, ExecutionInfo> executingTasks;
+	private ConcurrentMap<UUID, ExecutionInfo> executingTasks;
+
+	/**
+	 * Backup copies of the straggler Tasks, leased to a second Client while the first one is
+	 * still processing them, by Task id.
+	 * 
+	 * The first of the two Clients to set the result finishes the Task, and the lease of the 
+	 * other one is dropped, so its next renewal fails and it cancels the processing. If the 
+	 * original lease expires or fails first, the backup takes its place in executingTasks.
+	 */
+	private ConcurrentMap<UUID, ExecutionInfo> backups;
+
+	/**
+	 * Progress reported by the Clients processing the backups. The checkpoint of a backup starts
+	 * as a copy of the checkpoint of the Task, and replaces it only if the backup finishes first.
+	 */
+	private ConcurrentMap<UUID, Checkpoint> backupCheckpoints;
+
+	/**
+	 * The Tasks split from each Task, by Task id, until their results are retrieved.
+	 * 
+	 * When an idle Client finds no pending Task, the Client processing the Task with the most
+	 * bytes left is asked to stop halfway, and the rest becomes a new Task. The status and the
+	 * result of a Task include those of the Tasks split from it, so the split is not visible to
+	 * the FileServer.
+	 */
+	private ConcurrentMap<UUID, List<UUID>> children;
+
+	/**
+	 * Recent processing times of the Tasks of each file, to detect the stragglers.
+	 */
+	private TaskDurations durations;
+
+	/**
+	 * The stragglers found by the last scan of the executing Tasks, the worst first, for the
+	 * idle Clients to take backups of. Guarded by itself.
+	 */
+	private final Deque<ExecutionInfo> stragglers;
+
+	/**
+	 * The executing Tasks that can be split found by the last scan, the one with the most bytes
+	 * left first. Guarded by itself.
+	 */
+	private final Deque<ExecutionInfo> splittable;
+
+	/**
+	 * Time of the next scan of the executing Tasks.
+	 */
+	private final AtomicLong nextScan;
+
+	/**
+	 * Serialize the changes of the leases of each Task, as a Task with a backup has two of them.
+	 * Each Task is guarded by the lock given by {@link #lockFor(UUID)}.
+	 */
+	private Object[] leaseLocks;
 
 	/**
 	 * Store the Tasks that are available for the Clients to process.
 	 * 
-	 * Each new Task, added by the method addTask(), are appended to the tail of the list. Each 
-	 * Client gets the Task at the head of the list with getNext(). When the processing fails, 
-	 * either due a timeout or because of a notified failure by setFailure(), the Task returns at
-	 * the head of the list to be processed as quickly as possible.
+	 * Each new Task, added by the method addTask(), are appended to the tail of the list of its
+	 * file. Each Client gets the Task at the head of the list of the file whose turn it is with 
+	 * getNext(), so the files share the Clients according to their priorities. When the 
+	 * processing fails, either due a timeout or because of a notified failure by setFailure(), 
+	 * the Task returns at the head of the list of its file to be processed as quickly as 
+	 * possible. Clients waiting for a Task are woken up whenever one is inserted.
 	 */
-	private LinkedList<Task> pendingTasks;
+	private TaskQueue pendingTasks;
 	
 	/**
 	 * Store the result logs of each Task.
 	 * 
-	 * The keys are the Task ids, and the values are a list of ResultLog. 
+	 * The keys are the Task ids, and the values are a list of ResultLog. The oldest results are
+	 * moved to the disk when they exceed the heap budget.
+	 */
+	private ResultStore results;
+
+	/**
+	 * Progress reported by the Clients for the unfinished Tasks, by Task id.
+	 * 
+	 * A Task returned to pendingTasks starts at the checkpointed offset, and the logs of the 
+	 * checkpoint are merged with the result when the Task is finished.
 	 */
-	private Map<UUID, List<ResultLog>> results;
+	private ConcurrentMap<UUID, Checkpoint> checkpoints;
 
 	/**
-	 * Object used to control the access to the executingTasks, pendingTasks and results. 
+	 * The open result cursors, by cursor id.
 	 */
-	private static Object lock = new Object();
+	private ConcurrentMap<UUID, ResultCursor> cursors;
+
+	/**
+	 * The Tasks whose results are being read and removed by {@link #getResult(List)}, so two
+	 * concurrent callers do not both return them.
+	 */
+	private Set<UUID> retrieving;
+
+	/**
+	 * Index of the current status of each known Task, so getStatus() does not have to search
+	 * the other collections.
+	 * 
+	 * There is no global lock: the ownership of an executing Task is decided under the lease lock
+	 * of the Task, by whoever removes it from executingTasks, and the status is updated by that 
+	 * thread only. A Task is always 
+	 * marked PENDING before it is made visible in pendingTasks, and its entry is removed once 
+	 * the results are retrieved with getResult().
+	 */
+	private ConcurrentMap<UUID, TaskStatus> statuses;
+
+	/**
+	 * Detects the executing Tasks whose timeout has elapsed.
+	 */
+	private ExpirationWatchdog watchdog;
+
+	/**
+	 * Rate at which the Clients process the Tasks, measured when the results are set.
+	 */
+	private ThroughputEstimator throughput;
+
+	/**
+	 * Time when each Client last finished a Task. As the Tasks of a batch wait in the Client
+	 * before being processed, the processing time of a Task is measured from the end of the
+	 * previous one when it is later than the lease.
+	 */
+	private ConcurrentMap<UUID, Long> lastFinished;
+
+	/**
+	 * Time when each Client last asked for Tasks or renewed a lease, to count the active ones.
+	 */
+	private ConcurrentMap<UUID, Long> lastSeen;
+
+	/**
+	 * Records the changes of pendingTasks, executingTasks and results, or null if the state is 
+	 * not persisted. Each change is written before it is visible to the other Clients.
+	 */
+	private TaskJournal journal;
+
+	/**
+	 * Counters and latencies of the life cycle of the Tasks, and the sizes of the collections.
+	 */
+	private Metrics metrics;
+
+	private Counter tasksAdded;
+	private Counter tasksLeased;
+	private Counter tasksFinished;
+	private Counter tasksSplit;
+	private Counter backupsLeased;
+	private Counter resultsDiscarded;
+	private Counter expiredRequeues;
+	private Counter failedRequeues;
+
+	/**
+	 * Time from the lease of a Task to its result, in milliseconds.
+	 */
+	private Histogram leaseTimes;
+
+	/**
+	 * Bytes of the finished Tasks.
+	 */
+	private Meter finishedBytes;
+
+	/**
+	 * Taken while changing the state and writing it to the journal. As it is shared, the 
+	 * changes still run concurrently.
+	 */
+	private Lock updateLock;
+
+	/**
+	 * Taken while copying the state for a snapshot, so no change is seen half done.
+	 */
+	private Lock snapshotLock;
 
 	public TaskRepository() throws RemoteException {
+		this(null, ResultStore.DEFAULT_HEAP_BUDGET, EXPIRATION_PRECISION);
+	}
+
+	/**
+	 * Creates the repository, rebuilding its state from the journal kept in the folder.
+	 * 
+	 * @param journalDir
+	 *            the folder of the journal
+	 * @throws RemoteException
+	 *             if the object could not be exported, or if the journal could not be read
+	 */
+	public TaskRepository(File journalDir) throws RemoteException {
+		this(journalDir, ResultStore.DEFAULT_HEAP_BUDGET, EXPIRATION_PRECISION);
+	}
+
+	/**
+	 * Creates the repository, rebuilding its state from the journal kept in the folder.
+	 * 
+	 * The Tasks that were being executed when the previous repository stopped are pending 
+	 * again.
+	 * 
+	 * @param journalDir
+	 *            the folder of the journal, or null to not persist the state
+	 * @param resultHeapBudget
+	 *            estimated size, in bytes, of the results kept on the heap
+	 * @param expirationPrecision
+	 *            maximum time, in milliseconds, between the expiration of a Task and its return
+	 *            to the pending Tasks
+	 * @throws RemoteException
+	 *             if the object could not be exported, or if the journal could not be read
+	 */
+	public TaskRepository(File journalDir, long resultHeapBudget, long expirationPrecision)
+			throws RemoteException {
 		super();
-		executingTasks = new HashMap<UUID, ExecutionInfo>();
-		pendingTasks = new LinkedList<Task>();
-		results = new HashMap<UUID, List<ResultLog>>();
-		new Thread(new ExpirationWatchdog(this, 10000)).start();
+		executingTasks = new ConcurrentHashMap<UUID, ExecutionInfo>();
+		pendingTasks = new TaskQueue();
+		statuses = new ConcurrentHashMap<UUID, TaskStatus>();
+		cursors = new ConcurrentHashMap<UUID, ResultCursor>();
+		retrieving = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+		checkpoints = new ConcurrentHashMap<UUID, Checkpoint>();
+		backups = new ConcurrentHashMap<UUID, ExecutionInfo>();
+		backupCheckpoints = new ConcurrentHashMap<UUID, Checkpoint>();
+		children = new ConcurrentHashMap<UUID, List<UUID>>();
+		durations = new TaskDurations(64, 3);
+		stragglers = new ArrayDeque<ExecutionInfo>();
+		splittable = new ArrayDeque<ExecutionInfo>();
+		nextScan = new AtomicLong(0);
+		leaseLocks = new Object[LEASE_LOCKS];
+		for (int i = 0; i < leaseLocks.length; i++) {
+			leaseLocks[i] = new Object();
+		}
+		throughput = new ThroughputEstimator(0.2);
+		lastFinished = new ConcurrentHashMap<UUID, Long>();
+		lastSeen = new ConcurrentHashMap<UUID, Long>();
+		ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+		updateLock = stateLock.readLock();
+		snapshotLock = stateLock.writeLock();
+		watchdog = new ExpirationWatchdog(this, expirationPrecision);
+		new Thread(watchdog, "ExpirationWatchdog").start();
+		createMetrics();
 
+		File resultDir;
+		if (journalDir != null) {
+			resultDir = new File(journalDir, "results");
+		} else {
+			resultDir = new File(System.getProperty("java.io.tmpdir"), "ce288-results-"
+					+ UUID.randomUUID());
+		}
+		try {
+			results = new ResultStore(resultDir, resultHeapBudget);
+			if (journalDir == null) {
+				// Nothing refers to the spilled results once the process stops
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						results.delete();
+					}
+				}, "ResultStoreCleaner"));
+			}
+			if (journalDir != null) {
+				journal = new TaskJournal(journalDir);
+				recover();
+				journal.start(new Runnable() {
+					@Override
+					public void run() {
+						snapshot();
+					}
+				});
+				snapshot();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Could not open journal " + journalDir, e);
+		}
 	}
 
 	@Override
 	public void addTask(Task task) throws RemoteException {
-		synchronized (lock) {
-			pendingTasks.add(task);
-			logger.info("Added task {}", task);
+		addTask(task, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTask(Task task, int priority) throws RemoteException {
+		priority = Math.max(1, priority);
+		updateLock.lock();
+		try {
+			if (journal != null) {
+				journal.added(task, priority);
+			}
+			statuses.put(task.getId(), TaskStatus.PENDING);
+			pendingTasks.add(task, priority);
+			tasksAdded.increment();
+		} catch (IOException e) {
+			throw new RemoteException("Could not write journal", e);
+		} finally {
+			updateLock.unlock();
+		}
+		logger.info("Added task {}", task);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks) throws RemoteException {
+		addTasks(tasks, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks, int priority) throws RemoteException {
+		priority = Math.max(1, priority);
+		updateLock.lock();
+		try {
+			if (journal != null) {
+				journal.added(tasks, priority);
+			}
+			for (Task task : tasks) {
+				statuses.put(task.getId(), TaskStatus.PENDING);
+			}
+			pendingTasks.addAll(tasks, priority);
+			tasksAdded.add(tasks.size());
+		} catch (IOException e) {
+			throw new RemoteException("Could not write journal", e);
+		} finally {
+			updateLock.unlock();
 		}
+		logger.info("Added {} tasks", tasks.size());
 	}
 
 	@Override
 	public Task getNext(UUID clientId) throws RemoteException {
-		Task task;
-		synchronized (lock) {
-			task = pendingTasks.poll();
-			if (task != null) {
-				long now = System.currentTimeMillis();
-				ExecutionInfo info = new ExecutionInfo(now, now + TASK_TIMEOUT, clientId, task);
-				executingTasks.put(task.getId(), info);
-				logger.info("Client {} executing task {}.", clientId, task);
+		return getNext(clientId, 0);
+	}
+
+	@Override
+	public Task getNext(UUID clientId, long maxWaitMillis) throws RemoteException {
+		List<Task> batch = getNextBatch(clientId, 1, maxWaitMillis);
+		return batch.isEmpty() ? null : batch.get(0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks) throws RemoteException {
+		return getNextBatch(clientId, maxTasks, 0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks, long maxWaitMillis)
+			throws RemoteException {
+		maxTasks = Math.max(0, Math.min(maxTasks, MAX_BATCH_SIZE));
+		lastSeen.put(clientId, System.currentTimeMillis());
+		List<Task> batch = new TaskBatch(maxTasks);
+		long deadline = System.currentTimeMillis() + Math.min(maxWaitMillis, MAX_WAIT);
+		try {
+			while (true) {
+				if (pendingTasks.size() == 0) {
+					scanExecuting();
+				}
+				updateLock.lock();
+				try {
+					pendingTasks.poll(batch, maxTasks);
+					// The Client processes the batch in order, so each Task waits for the ones
+					// before it
+					long queued = 0;
+					for (Task task : batch) {
+						lease(clientId, task, queued);
+						queued += task.getLength();
+					}
+					if (batch.isEmpty() && maxTasks > 0 && !requestSplit(clientId)) {
+						Task backup = speculate(clientId);
+						if (backup != null) {
+							batch.add(backup);
+						}
+					}
+				} finally {
+					updateLock.unlock();
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (!batch.isEmpty() || remaining <= 0) {
+					break;
+				}
+				// Do not hold the lock while waiting, another Client may take the Tasks first.
+				// Wake up periodically to look for stragglers
+				pendingTasks.await(Math.min(remaining, SPECULATION_INTERVAL));
 			}
+		} catch (IOException e) {
+			throw new RemoteException("Could not write journal", e);
+		} catch (InterruptedException e) {
+			logger.warn("Client {} interrupted while waiting for tasks.", clientId);
+			Thread.currentThread().interrupt();
+		}
+		return batch;
+	}
+
+	/**
+	 * Called by the {@link ExpirationWatchdog} when the deadline of the lease is reached. If the
+	 * Task is still being executed under this lease and its deadline was not extended, it returns
+	 * to pendingTasks.
+	 * 
+	 * @param info
+	 *            the lease
+	 */
+	void expire(ExecutionInfo info) {
+		UUID taskId = info.getTask().getId();
+		if (executingTasks.get(taskId) != info && backups.get(taskId) != info) {
+			// The Task was already finished, failed or leased again
+			return;
+		}
+		if (!info.isExpired()) {
+			watchdog.schedule(info);
+			return;
+		}
+		updateLock.lock();
+		try {
+			synchronized (lockFor(taskId)) {
+				if (backups.remove(taskId, info)) {
+					backupCheckpoints.remove(taskId);
+					logger.info("Backup of task {} being executed by {} expired.", taskId,
+							info.getClientId());
+				} else if (executingTasks.remove(taskId, info)) {
+					logger.info("Task {} being executed by {} expired.", taskId, info.getClientId());
+					requeue(info.getTask());
+					expiredRequeues.increment();
+				}
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean renewLease(UUID clientId, UUID taskId) throws RemoteException {
+		lastSeen.put(clientId, System.currentTimeMillis());
+		ExecutionInfo info = getLease(clientId, taskId);
+		if (info == null) {
+			logger.info("Client {} lost the lease of task {}.", clientId, taskId);
+			return false;
 		}
-		return task;
+		renew(info);
+		return true;
 	}
 
-	public void removeExpired() {
-		synchronized (lock) {
-			Set<UUID> keys = executingTasks.keySet();
-			Iterator<UUID> iter = keys.iterator();
-			while (iter.hasNext()) {
-				UUID key = iter.next();
-				if (executingTasks.get(key).isExpired()) {
-					ExecutionInfo info = executingTasks.remove(key);
-					logger.info("Task {} being executed by {} expired.", key, info.getClientId());
-					pendingTasks.addFirst(info.getTask());
+	@Override
+	public long reportProgress(UUID clientId, UUID taskId, long bytesDone,
+			List<ResultLog> partialLogs) throws RemoteException {
+		ExecutionInfo info = getLease(clientId, taskId);
+		if (info == null) {
+			logger.info("Client {} lost the lease of task {}.", clientId, taskId);
+			return -1;
+		}
+		Task task = info.getTask();
+		long position;
+		long limit;
+		updateLock.lock();
+		try {
+			synchronized (lockFor(taskId)) {
+				position = task.getPosition() + Math.max(0, Math.min(bytesDone, task.getLength()));
+				if (executingTasks.get(taskId) == info) {
+					if (journal != null) {
+						journal.progress(taskId, position, partialLogs);
+					}
+					Checkpoint checkpoint = checkpoints.get(taskId);
+					if (checkpoint == null) {
+						checkpoint = new Checkpoint(task.getPosition());
+						checkpoints.put(taskId, checkpoint);
+					}
+					checkpoint.add(position, partialLogs);
+					if (info.isSplitRequested()) {
+						info.setSplitRequested(false);
+						long remaining = task.getPosition() + task.getLength()
+								- checkpoint.getPosition();
+						if (remaining >= 2 * MIN_SPLIT_SIZE && !backups.containsKey(taskId)) {
+							split(task, checkpoint.getPosition() + remaining / 2);
+						}
+					}
+				} else if (backups.get(taskId) == info) {
+					// The progress of a backup is not journaled, it is lost with the Server
+					backupCheckpoints.get(taskId).add(position, partialLogs);
+				} else {
+					return -1;
 				}
+				limit = task.getLength();
 			}
+		} catch (IOException e) {
+			throw new RemoteException("Could not write journal", e);
+		} finally {
+			updateLock.unlock();
 		}
+		// The report also counts as a heartbeat
+		renew(info);
+		logger.debug("Client {} processed task {} up to {}.", clientId, taskId, position);
+		return limit;
 	}
 
 	@Override
 	public void setResult(UUID clientId, UUID taskId, Result result) throws RemoteException {
-		synchronized (lock) {
-			if (executingTasks.containsKey(taskId)) {
-				executingTasks.remove(taskId);
-				results.put(taskId, result.getLogs());
+		ExecutionInfo info = null;
+		updateLock.lock();
+		try {
+			synchronized (lockFor(taskId)) {
+				ExecutionInfo original = executingTasks.get(taskId);
+				ExecutionInfo backup = backups.get(taskId);
+				Checkpoint checkpoint = null;
+				if (original != null && original.getClientId().equals(clientId)) {
+					info = original;
+					checkpoint = checkpoints.remove(taskId);
+					if (backup != null) {
+						backups.remove(taskId);
+						backupCheckpoints.remove(taskId);
+						logger.info("Cancelled backup of task {} being executed by {}.", taskId,
+								backup.getClientId());
+					}
+				} else if (backup != null && backup.getClientId().equals(clientId)) {
+					info = backup;
+					checkpoint = backupCheckpoints.remove(taskId);
+					backups.remove(taskId);
+					checkpoints.remove(taskId);
+					// The original may have expired or been requeued meanwhile
+					logger.info("Backup of task {} finished before {}.", taskId,
+							original != null ? original.getClientId() : "the original");
+				}
+				if (info != null) {
+					executingTasks.remove(taskId);
+					List<ResultLog> logs = result.getLogs();
+					if (checkpoint != null) {
+						logs = checkpoint.getLogs();
+						logs.addAll(result.getLogs());
+					}
+					if (journal != null) {
+						journal.finished(taskId, logs);
+					}
+					results.put(taskId, logs);
+					statuses.put(taskId, TaskStatus.FINISHED);
+				}
 			}
+		} catch (IOException e) {
+			throw new RemoteException("Could not store result", e);
+		} finally {
+			updateLock.unlock();
+		}
+		if (info == null) {
+			resultsDiscarded.increment();
+			logger.info("Discarded result of task {} from {}, which does not hold its lease.",
+					taskId, clientId);
+			return;
 		}
+		long now = System.currentTimeMillis();
+		long start = info.getStartTime();
+		tasksFinished.increment();
+		leaseTimes.record(now - start);
+		finishedBytes.mark(info.getTask().getLength());
+		Long previous = lastFinished.put(clientId, now);
+		if (previous != null && previous > start) {
+			start = previous;
+		}
+		throughput.add(info.getTask().getLength(), now - start);
+		if (info.getProcessingStart() > 0) {
+			start = info.getProcessingStart();
+		}
+		durations.add(TaskQueue.getKey(info.getTask()), now - start);
 		logger.info("Client {} finished task {}.", clientId, taskId);
 	}
 
 	@Override
 	public List<ResultLog> getResult(List<UUID> taskIds) throws RemoteException {
-		ArrayList<ResultLog> list = new ArrayList<>();
-		for (UUID taskId : taskIds) {
-			if (results.containsKey(taskId)) {
-				list.addAll(results.get(taskId));
-				results.remove(taskId);
-				logger.info("Removed task {}", taskId);
-			} else {
-				throw new RemoteException("There is no result for task ID " + taskId.toString());
+		taskIds = expand(taskIds);
+		// The ids are claimed before the results are checked, and released once they are
+		// removed, so a concurrent caller finds them either claimed or gone
+		Set<UUID> claimed = new HashSet<UUID>();
+		try {
+			for (UUID taskId : taskIds) {
+				if (!claimed.contains(taskId) && !retrieving.add(taskId)) {
+					throw new RemoteException("The result of task ID " + taskId.toString()
+							+ " is being retrieved by another caller");
+				}
+				claimed.add(taskId);
+			}
+			checkResults(taskIds);
+			ArrayList<ResultLog> list = new ArrayList<>();
+			for (UUID taskId : taskIds) {
+				List<ResultLog> logs;
+				try {
+					logs = results.get(taskId);
+				} catch (IOException e) {
+					throw new RemoteException("Could not read result", e);
+				}
+				if (logs == null) {
+					throw new RemoteException("There is no result for task ID "
+							+ taskId.toString());
+				}
+				list.addAll(logs);
+			}
+			removeResults(taskIds);
+			return list;
+		} finally {
+			retrieving.removeAll(claimed);
+		}
+	}
+
+	@Override
+	public UUID openResultCursor(List<UUID> taskIds) throws RemoteException {
+		taskIds = expand(taskIds);
+		checkResults(taskIds);
+		long now = System.currentTimeMillis();
+		for (Map.Entry<UUID, ResultCursor> entry : cursors.entrySet()) {
+			if (now - entry.getValue().getLastAccess() > CURSOR_TIMEOUT
+					&& cursors.remove(entry.getKey(), entry.getValue())) {
+				logger.info("Discarded abandoned result cursor {}.", entry.getKey());
+			}
+		}
+		UUID cursorId = UUID.randomUUID();
+		cursors.put(cursorId, new ResultCursor(taskIds));
+		return cursorId;
+	}
+
+	@Override
+	public ResultPage nextResultPage(UUID cursorId, int maxLogs) throws RemoteException {
+		ResultCursor cursor = cursors.get(cursorId);
+		if (cursor == null) {
+			throw new RemoteException("There is no result cursor " + cursorId.toString());
+		}
+		maxLogs = Math.max(1, Math.min(maxLogs, MAX_PAGE_SIZE));
+		List<ResultLog> page = new ArrayList<ResultLog>(Math.min(maxLogs, 1024));
+		synchronized (cursor) {
+			cursor.touch();
+			while (page.size() < maxLogs && !cursor.isFinished()) {
+				if (cursor.getLogs() == null) {
+					UUID taskId = cursor.getCurrentTask();
+					try {
+						cursor.setLogs(results.get(taskId));
+					} catch (IOException e) {
+						throw new RemoteException("Could not read result", e);
+					}
+					if (cursor.getLogs() == null) {
+						throw new RemoteException("There is no result for task ID "
+								+ taskId.toString());
+					}
+				}
+				cursor.read(page, maxLogs);
 			}
+			if (!cursor.isFinished()) {
+				return new ResultPage(page, false);
+			}
+		}
+		// The results are only removed once they were all read
+		if (cursors.remove(cursorId) != null) {
+			removeResults(cursor.getTaskIds());
 		}
-		return list;
+		return new ResultPage(page, true);
+	}
+
+	@Override
+	public void closeResultCursor(UUID cursorId) throws RemoteException {
+		cursors.remove(cursorId);
 	}
 
 	@Override
 	public void setFailure(UUID clientId, UUID taskId, String msg) throws RemoteException {
-		synchronized (lock) {
-			if (executingTasks.containsKey(taskId)) {
-				ExecutionInfo info = executingTasks.remove(taskId);
-				pendingTasks.addFirst(info.getTask());
+		updateLock.lock();
+		try {
+			synchronized (lockFor(taskId)) {
+				ExecutionInfo info = executingTasks.get(taskId);
+				ExecutionInfo backup = backups.get(taskId);
+				if (backup != null && backup.getClientId().equals(clientId)) {
+					backups.remove(taskId);
+					backupCheckpoints.remove(taskId);
+				} else if (info != null && info.getClientId().equals(clientId)) {
+					executingTasks.remove(taskId);
+					requeue(info.getTask());
+					failedRequeues.increment();
+				}
 			}
+		} catch (IOException e) {
+			throw new RemoteException("Could not write journal", e);
+		} finally {
+			updateLock.unlock();
 		}
 		logger.info("Client {} failed task {}.", clientId, taskId);
 	}
 
 	@Override
 	public TaskStatus getStatus(UUID taskId) throws RemoteException {
-		if (executingTasks.containsKey(taskId)) {
-			return TaskStatus.EXECUTING;
-		} else if (results.containsKey(taskId)) {
-			return TaskStatus.FINISHED;
-		} else {
-			for (Task task : pendingTasks) {
-				if (task.getId().equals(taskId)) {
-					return TaskStatus.PENDING;
+		TaskStatus status = statuses.get(taskId);
+		if (status == null) {
+			return TaskStatus.FAILED;
+		}
+		List<UUID> split = children.get(taskId);
+		if (status == TaskStatus.FINISHED && split != null) {
+			// The Task is only finished with the Tasks split from it
+			for (UUID childId : split) {
+				TaskStatus childStatus = getStatus(childId);
+				if (childStatus != TaskStatus.FINISHED) {
+					return childStatus;
 				}
 			}
-			return TaskStatus.FAILED;
+		}
+		return status;
+	}
+
+	@Override
+	public int getPendingCount() throws RemoteException {
+		return pendingTasks.size();
+	}
+
+	@Override
+	public Map<String, Long> getStatistics() throws RemoteException {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * Gets the metrics of this repository, so they can be registered in JMX.
+	 * 
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Counts the Clients seen in the last {@link #ACTIVE_CLIENT_PERIOD}, forgetting the others.
+	 * 
+	 * @return the number of active Clients
+	 */
+	private int countActiveClients() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Map.Entry<UUID, Long> entry : lastSeen.entrySet()) {
+			if (now - entry.getValue() < ACTIVE_CLIENT_PERIOD) {
+				count++;
+			} else {
+				lastSeen.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Creates the counters, latencies and the gauges of the sizes of the collections.
+	 */
+	private void createMetrics() {
+		metrics = new Metrics();
+		metrics.add("pending", new Gauge() {
+			@Override
+			public long getValue() {
+				return pendingTasks.size();
+			}
+		});
+		metrics.add("executing", new Gauge() {
+			@Override
+			public long getValue() {
+				return executingTasks.size();
+			}
+		});
+		metrics.add("backups", new Gauge() {
+			@Override
+			public long getValue() {
+				return backups.size();
+			}
+		});
+		metrics.add("results", new Gauge() {
+			@Override
+			public long getValue() {
+				return results.size();
+			}
+		});
+		metrics.add(ACTIVE_CLIENTS, new Gauge() {
+			@Override
+			public long getValue() {
+				return countActiveClients();
+			}
+		});
+		metrics.add(CLIENT_THROUGHPUT, new Gauge() {
+			@Override
+			public long getValue() {
+				// The estimate is in bytes per millisecond
+				return (long) (throughput.getRate() * 1000);
+			}
+		});
+		tasksAdded = metrics.counter("tasksAdded");
+		tasksLeased = metrics.counter("tasksLeased");
+		tasksFinished = metrics.counter("tasksFinished");
+		tasksSplit = metrics.counter("tasksSplit");
+		backupsLeased = metrics.counter("backupsLeased");
+		resultsDiscarded = metrics.counter("resultsDiscarded");
+		expiredRequeues = metrics.counter("requeuedExpired");
+		failedRequeues = metrics.counter("requeuedFailed");
+		metrics.add("queueTime", pendingTasks.getWaitTimes());
+		leaseTimes = metrics.histogram("leaseTime");
+		finishedBytes = metrics.meter("finishedBytes");
+	}
+
+	/**
+	 * Adds the Tasks split from the Tasks, recursively, after each of them.
+	 * 
+	 * @param taskIds
+	 *            the Task ids
+	 * @return a new list of Task ids
+	 */
+	private List<UUID> expand(List<UUID> taskIds) {
+		List<UUID> expanded = new ArrayList<UUID>(taskIds.size());
+		for (UUID taskId : taskIds) {
+			expanded.add(taskId);
+			List<UUID> split = children.get(taskId);
+			if (split != null) {
+				expanded.addAll(expand(split));
+			}
+		}
+		return expanded;
+	}
+
+	/**
+	 * Checks that all the Tasks have a result, before any of them is read or removed.
+	 * 
+	 * @param taskIds
+	 *            the Task ids
+	 * @throws RemoteException
+	 *             if some Task has no result
+	 */
+	private void checkResults(List<UUID> taskIds) throws RemoteException {
+		int missing = 0;
+		UUID first = null;
+		for (UUID taskId : taskIds) {
+			if (!results.containsKey(taskId)) {
+				missing++;
+				if (first == null) {
+					first = taskId;
+				}
+			}
+		}
+		if (missing > 0) {
+			throw new RemoteException("There is no result for task ID " + first.toString()
+					+ (missing > 1 ? " and other " + (missing - 1) + " tasks" : ""));
+		}
+	}
+
+	/**
+	 * Removes the results of the Tasks, after they were read.
+	 * 
+	 * @param taskIds
+	 *            the Task ids
+	 * @throws RemoteException
+	 *             if the removal could not be written to the journal
+	 */
+	private void removeResults(List<UUID> taskIds) throws RemoteException {
+		for (UUID taskId : taskIds) {
+			updateLock.lock();
+			try {
+				// Already read by the caller, a spilled result is not read again
+				if (results.discard(taskId)) {
+					if (journal != null) {
+						journal.retrieved(taskId);
+					}
+					statuses.remove(taskId);
+					children.remove(taskId);
+					logger.info("Removed task {}", taskId);
+				}
+			} catch (IOException e) {
+				throw new RemoteException("Could not remove result", e);
+			} finally {
+				updateLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Registers a Task just removed from pendingTasks as being executed by the Client. Must be
+	 * called with the updateLock held.
+	 * 
+	 * @param clientId
+	 *            the Client which got the Task
+	 * @param task
+	 *            the Task
+	 * @param queued
+	 *            the number of bytes the Client must process before starting this Task
+	 * @throws IOException
+	 *             if the lease could not be written to the journal
+	 */
+	private void lease(UUID clientId, Task task, long queued) throws IOException {
+		if (journal != null) {
+			journal.leased(task.getId(), clientId);
+		}
+		long now = System.currentTimeMillis();
+		ExecutionInfo info = new ExecutionInfo(now, now + getTimeout(queued + task.getLength()),
+				clientId, task);
+		executingTasks.put(task.getId(), info);
+		statuses.put(task.getId(), TaskStatus.EXECUTING);
+		watchdog.schedule(info);
+		tasksLeased.increment();
+		logger.info("Client {} executing task {}.", clientId, task);
+	}
+
+	/**
+	 * Scans the executing Tasks for the stragglers and for the Tasks that can be split, at most
+	 * once every {@link #SPECULATION_INTERVAL}, so the idle Clients take them from the lists
+	 * instead of each one scanning all the executing Tasks. Only the Client that finds the scan
+	 * due does it, without holding the updateLock. The processing times of the files whose Tasks
+	 * are gone are forgotten.
+	 */
+	private void scanExecuting() {
+		long now = System.currentTimeMillis();
+		long due = nextScan.get();
+		if (now < due || !nextScan.compareAndSet(due, now + SPECULATION_INTERVAL)) {
+			return;
+		}
+		final Map<ExecutionInfo, Long> excess = new HashMap<ExecutionInfo, Long>();
+		final Map<ExecutionInfo, Long> remaining = new HashMap<ExecutionInfo, Long>();
+		// The pending files first, so a Task leased meanwhile is seen in either
+		Set<String> keys = pendingTasks.getActiveKeys();
+		for (ExecutionInfo info : executingTasks.values()) {
+			Task task = info.getTask();
+			String key = TaskQueue.getKey(task);
+			keys.add(key);
+			if (backups.containsKey(task.getId())) {
+				continue;
+			}
+			long started = info.getProcessingStart();
+			long median = durations.median(key);
+			if (started != 0 && median >= 0) {
+				long late = now - started
+						- Math.max(MIN_SPECULATION_DELAY, median * SPECULATION_FACTOR);
+				if (late > 0) {
+					excess.put(info, late);
+				}
+			}
+			// Only the analysers that report their progress can be split
+			Checkpoint checkpoint = checkpoints.get(task.getId());
+			if (checkpoint != null && !info.isSplitRequested()) {
+				long left = task.getPosition() + task.getLength() - checkpoint.getPosition();
+				if (left >= 2 * MIN_SPLIT_SIZE) {
+					remaining.put(info, left);
+				}
+			}
+		}
+		durations.retain(keys);
+		List<ExecutionInfo> late = new ArrayList<ExecutionInfo>(excess.keySet());
+		Collections.sort(late, new Comparator<ExecutionInfo>() {
+			@Override
+			public int compare(ExecutionInfo a, ExecutionInfo b) {
+				return Long.compare(excess.get(b), excess.get(a));
+			}
+		});
+		List<ExecutionInfo> large = new ArrayList<ExecutionInfo>(remaining.keySet());
+		Collections.sort(large, new Comparator<ExecutionInfo>() {
+			@Override
+			public int compare(ExecutionInfo a, ExecutionInfo b) {
+				return Long.compare(remaining.get(b), remaining.get(a));
+			}
+		});
+		synchronized (stragglers) {
+			stragglers.clear();
+			stragglers.addAll(late);
+		}
+		synchronized (splittable) {
+			splittable.clear();
+			splittable.addAll(large);
+		}
+	}
+
+	/**
+	 * Leases a backup of the worst straggler found by the last scan, running beyond
+	 * {@link #SPECULATION_FACTOR} times the median of its file, to a Client that found no pending
+	 * Task. The backup starts from the last checkpoint of the Task. Must be called with the
+	 * updateLock held.
+	 * 
+	 * @param clientId
+	 *            the idle Client
+	 * @return the backup, or null if there is no straggler
+	 */
+	private Task speculate(UUID clientId) {
+		long now = System.currentTimeMillis();
+		ExecutionInfo straggler = null;
+		synchronized (stragglers) {
+			Iterator<ExecutionInfo> iter = stragglers.iterator();
+			while (straggler == null && iter.hasNext()) {
+				ExecutionInfo info = iter.next();
+				if (info.getClientId().equals(clientId)) {
+					// Left for another Client
+					continue;
+				}
+				iter.remove();
+				if (executingTasks.get(info.getTask().getId()) == info) {
+					straggler = info;
+				}
+			}
+		}
+		if (straggler == null) {
+			return null;
+		}
+		Task task = straggler.getTask();
+		UUID taskId = task.getId();
+		Task backup;
+		synchronized (lockFor(taskId)) {
+			if (executingTasks.get(taskId) != straggler || backups.containsKey(taskId)) {
+				return null;
+			}
+			Checkpoint original = checkpoints.get(taskId);
+			Checkpoint checkpoint = original == null ? new Checkpoint(task.getPosition())
+					: new Checkpoint(original);
+			backup = new Task(taskId, task.getFormat(), task.getLocation(),
+					task.getFilename(), task.getPosition(), task.getLength());
+			checkpoint.apply(backup);
+			if (backup.getLength() == 0) {
+				return null;
+			}
+			ExecutionInfo info = new ExecutionInfo(now, now + getTimeout(backup.getLength()),
+					clientId, backup);
+			backups.put(taskId, info);
+			backupCheckpoints.put(taskId, checkpoint);
+			watchdog.schedule(info);
+		}
+		backupsLeased.increment();
+		logger.info("Client {} executing backup of task {}, running for {} ms on {}.", clientId,
+				taskId, now - straggler.getProcessingStart(), straggler.getClientId());
+		return backup;
+	}
+
+	/**
+	 * Asks the Client processing the executing Task with the most bytes left, found by the last
+	 * scan, to split it with an idle Client. The split is only done at the next report of
+	 * progress of the Task, so it happens ahead of what the Client already processed, and the
+	 * rest of the Task is inserted at the head of pendingTasks. Must be called with the
+	 * updateLock held.
+	 * 
+	 * @param clientId
+	 *            the idle Client
+	 * @return true if a split was requested
+	 */
+	private boolean requestSplit(UUID clientId) {
+		ExecutionInfo largest = null;
+		synchronized (splittable) {
+			Iterator<ExecutionInfo> iter = splittable.iterator();
+			while (largest == null && iter.hasNext()) {
+				ExecutionInfo info = iter.next();
+				if (info.getClientId().equals(clientId)) {
+					// Left for another Client
+					continue;
+				}
+				iter.remove();
+				Task task = info.getTask();
+				Checkpoint checkpoint = checkpoints.get(task.getId());
+				if (executingTasks.get(task.getId()) == info && checkpoint != null
+						&& !info.isSplitRequested() && !backups.containsKey(task.getId())
+						&& task.getPosition() + task.getLength() - checkpoint.getPosition()
+						>= 2 * MIN_SPLIT_SIZE) {
+					largest = info;
+				}
+			}
+		}
+		if (largest == null) {
+			return false;
+		}
+		largest.setSplitRequested(true);
+		logger.info("Client {} asked to split task {} being executed by {}.", clientId,
+				largest.getTask(), largest.getClientId());
+		return true;
+	}
+
+	/**
+	 * Moves the end of an executing Task, from the offset on, to a new Task at the head of
+	 * pendingTasks. Must be called with the updateLock and the lease lock held.
+	 * 
+	 * The offset may be in the middle of a line, which stays in the executing Task, as the
+	 * FileServer sends each section the lines that start in it.
+	 * 
+	 * @param task
+	 *            the executing Task
+	 * @param offset
+	 *            the offset in the file where the new Task starts
+	 * @throws IOException
+	 *             if the split could not be written to the journal
+	 */
+	private void split(Task task, long offset) throws IOException {
+		Task child = new Task(task.getFormat(), task.getLocation(), task.getFilename(), offset,
+				task.getPosition() + task.getLength() - offset);
+		if (journal != null) {
+			journal.added(child, 0);
+			journal.split(task.getId(), child.getId(), offset - task.getPosition());
+		}
+		task.setLength(offset - task.getPosition());
+		List<UUID> split = children.get(task.getId());
+		if (split == null) {
+			split = new CopyOnWriteArrayList<UUID>();
+			children.put(task.getId(), split);
+		}
+		split.add(child.getId());
+		statuses.put(child.getId(), TaskStatus.PENDING);
+		pendingTasks.addFirst(child);
+		tasksSplit.increment();
+		logger.info("Split task {} at {} into task {}.", task, offset, child);
+	}
+
+	/**
+	 * Gets the lease of a Task held by a Client, either the original or the backup.
+	 * 
+	 * @return the lease, or null if the Client holds none
+	 */
+	private ExecutionInfo getLease(UUID clientId, UUID taskId) {
+		ExecutionInfo info = executingTasks.get(taskId);
+		if (info != null && info.getClientId().equals(clientId)) {
+			return info;
+		}
+		info = backups.get(taskId);
+		if (info != null && info.getClientId().equals(clientId)) {
+			return info;
+		}
+		return null;
+	}
+
+	/**
+	 * Extends the timeout and the liveness deadline of a lease. The first renewal marks the start
+	 * of the processing, and schedules the expiration at the liveness deadline, which is checked
+	 * and scheduled again each time it is reached.
+	 */
+	private void renew(ExecutionInfo info) {
+		long now = System.currentTimeMillis();
+		boolean first = info.getProcessingStart() == 0;
+		if (first) {
+			info.setProcessingStart(now);
+		}
+		long timeout = now + LEASE_RENEWAL;
+		if (timeout > info.getTimeout()) {
+			info.setTimeout(timeout);
+		}
+		info.setLivenessDeadline(now + LIVENESS_TIMEOUT);
+		if (first) {
+			watchdog.schedule(info);
+		}
+	}
+
+	private Object lockFor(UUID taskId) {
+		return leaseLocks[(taskId.hashCode() & Integer.MAX_VALUE) % leaseLocks.length];
+	}
+
+	/**
+	 * Derives the timeout of a Task from the throughput measured so far.
+	 * 
+	 * @param bytes
+	 *            the number of bytes to be processed until the Task is finished
+	 * @return the timeout, in milliseconds
+	 */
+	private long getTimeout(long bytes) {
+		long expected = throughput.estimate(bytes);
+		if (expected < 0) {
+			return TASK_TIMEOUT;
+		}
+		return Math.max(MIN_TASK_TIMEOUT, Math.min(MAX_TASK_TIMEOUT, expected * TIMEOUT_FACTOR));
+	}
+
+	/**
+	 * Returns a Task removed from executingTasks to the head of pendingTasks, so it is processed 
+	 * as quickly as possible. If the Client reported some progress, the Task resumes from the
+	 * last checkpoint. If a backup of the Task is being executed, it takes the place of the
+	 * original lease instead. Must be called with the updateLock and the lease lock held.
+	 * 
+	 * The journal is written after the Task is back in memory, so a Task is never lost if the
+	 * write fails. Without the record, the Task is requeued at recovery as still leased.
+	 * 
+	 * @param task
+	 *            the Task whose execution was abandoned
+	 * @throws IOException
+	 *             if the failure could not be written to the journal, once the Task is requeued
+	 */
+	private void requeue(Task task) throws IOException {
+		ExecutionInfo backup = backups.remove(task.getId());
+		if (backup != null) {
+			Checkpoint checkpoint = backupCheckpoints.remove(task.getId());
+			checkpoints.put(task.getId(), checkpoint);
+			executingTasks.put(task.getId(), backup);
+			logger.info("Backup of task {} being executed by {} replaces the original lease.",
+					task, backup.getClientId());
+			if (journal != null) {
+				journal.checkpoint(task.getId(), checkpoint.getPosition(), checkpoint.getLogs());
+			}
+			return;
+		}
+		Checkpoint checkpoint = checkpoints.get(task.getId());
+		if (checkpoint != null) {
+			checkpoint.apply(task);
+			logger.info("Task {} resumes from {}.", task, task.getPosition());
+		}
+		statuses.put(task.getId(), TaskStatus.PENDING);
+		pendingTasks.addFirst(task);
+		if (journal != null) {
+			journal.failed(task.getId());
+		}
+	}
+
+	/**
+	 * Rebuilds pendingTasks and results from the journal. The Tasks that were being executed are
+	 * returned to the head of the queues of their files.
+	 * 
+	 * @throws IOException
+	 *             if the journal could not be read
+	 */
+	private void recover() throws IOException {
+		final Map<UUID, Task> pending = new LinkedHashMap<UUID, Task>();
+		final Map<UUID, Integer> priorities = new HashMap<UUID, Integer>();
+		final Map<UUID, Task> executing = new LinkedHashMap<UUID, Task>();
+		// The spilled results whose segment is gone, which is expected only if they were
+		// retrieved afterwards
+		final Set<UUID> lost = new HashSet<UUID>();
+		journal.replay(new TaskJournal.Replayer() {
+			@Override
+			public void added(Task task, int priority) throws IOException {
+				UUID id = task.getId();
+				if (!pending.containsKey(id) && !executing.containsKey(id)
+						&& !results.containsKey(id)) {
+					pending.put(id, task);
+				}
+				if (priority > 0) {
+					priorities.put(id, priority);
+				}
+			}
+
+			@Override
+			public void leased(UUID taskId, UUID clientId) throws IOException {
+				Task task = pending.remove(taskId);
+				if (task != null) {
+					executing.put(taskId, task);
+				}
+			}
+
+			@Override
+			public void finished(UUID taskId, List<ResultLog> logs) throws IOException {
+				pending.remove(taskId);
+				executing.remove(taskId);
+				priorities.remove(taskId);
+				checkpoints.remove(taskId);
+				results.put(taskId, logs);
+			}
+
+			@Override
+			public void spilled(UUID taskId, int segment, long offset, int length)
+					throws IOException {
+				pending.remove(taskId);
+				executing.remove(taskId);
+				priorities.remove(taskId);
+				checkpoints.remove(taskId);
+				try {
+					results.adopt(taskId, segment, offset, length);
+				} catch (IOException e) {
+					lost.add(taskId);
+				}
+			}
+
+			@Override
+			public void failed(UUID taskId) throws IOException {
+				Task task = executing.remove(taskId);
+				if (task != null) {
+					pending.put(taskId, task);
+				}
+			}
+
+			@Override
+			public void retrieved(UUID taskId) throws IOException {
+				results.discard(taskId);
+				children.remove(taskId);
+				lost.remove(taskId);
+			}
+
+			@Override
+			public void progress(UUID taskId, long position, List<ResultLog> logs)
+					throws IOException {
+				Checkpoint checkpoint = checkpoints.get(taskId);
+				if (checkpoint == null) {
+					checkpoint = new Checkpoint(position);
+					checkpoints.put(taskId, checkpoint);
+				}
+				checkpoint.add(position, logs);
+			}
+
+			@Override
+			public void checkpoint(UUID taskId, long position, List<ResultLog> logs)
+					throws IOException {
+				Checkpoint checkpoint = new Checkpoint(position);
+				checkpoint.add(position, logs);
+				checkpoints.put(taskId, checkpoint);
+			}
+
+			@Override
+			public void split(UUID taskId, UUID childId, long length) throws IOException {
+				List<UUID> split = children.get(taskId);
+				if (split == null) {
+					split = new CopyOnWriteArrayList<UUID>();
+					children.put(taskId, split);
+				}
+				if (!split.contains(childId)) {
+					split.add(childId);
+				}
+				Task task = pending.containsKey(taskId) ? pending.get(taskId) : executing
+						.get(taskId);
+				if (task != null && length >= 0) {
+					task.setLength(length);
+				}
+			}
+		});
+		for (Map.Entry<UUID, Checkpoint> entry : checkpoints.entrySet()) {
+			Task task = pending.get(entry.getKey());
+			if (task == null) {
+				task = executing.get(entry.getKey());
+			}
+			if (task != null) {
+				entry.getValue().apply(task);
+			} else {
+				checkpoints.remove(entry.getKey());
+			}
+		}
+		for (Task task : pending.values()) {
+			Integer priority = priorities.get(task.getId());
+			statuses.put(task.getId(), TaskStatus.PENDING);
+			// The Tasks added without a priority keep the one of their file
+			pendingTasks.add(task, priority == null ? 0 : priority);
+		}
+		ListIterator<Task> iter = new ArrayList<Task>(executing.values()).listIterator(executing
+				.size());
+		while (iter.hasPrevious()) {
+			Task task = iter.previous();
+			statuses.put(task.getId(), TaskStatus.PENDING);
+			pendingTasks.addFirst(task);
+		}
+		for (UUID taskId : results.keySet()) {
+			statuses.put(taskId, TaskStatus.FINISHED);
+		}
+		if (!lost.isEmpty()) {
+			logger.error("Lost the results of {} finished tasks, whose segments are missing.",
+					lost.size());
+		}
+		results.recovered();
+		logger.info("Recovered {} pending, {} executing and {} finished tasks.", pending.size(),
+				executing.size(), results.size());
+	}
+
+	/**
+	 * Writes the current state to a snapshot of the journal, so the older segments are no 
+	 * longer needed. The Tasks being executed are recorded as leased, so they are pending when 
+	 * the snapshot is read.
+	 */
+	private void snapshot() {
+		int seq;
+		Map<Task, Integer> pending;
+		List<Task> executing = new ArrayList<Task>();
+		Map<UUID, Checkpoint> progress = new HashMap<UUID, Checkpoint>();
+		Map<UUID, List<UUID>> split = new HashMap<UUID, List<UUID>>();
+		List<UUID> finished;
+		snapshotLock.lock();
+		try {
+			seq = journal.roll();
+			pending = pendingTasks.snapshot();
+			for (ExecutionInfo info : executingTasks.values()) {
+				executing.add(info.getTask());
+			}
+			for (Map.Entry<UUID, Checkpoint> entry : checkpoints.entrySet()) {
+				progress.put(entry.getKey(), new Checkpoint(entry.getValue()));
+			}
+			for (Map.Entry<UUID, List<UUID>> entry : children.entrySet()) {
+				split.put(entry.getKey(), new ArrayList<UUID>(entry.getValue()));
+			}
+			finished = new ArrayList<UUID>(results.keySet());
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			return;
+		} finally {
+			snapshotLock.unlock();
+		}
+		try {
+			journal.writeSnapshot(seq, pending, executing, progress, split, finished, results);
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
 		}
 	}
 
@@ -3,6 +3,7 @@ package ce288.tasks;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import ce288.tasks.Result.ResultLog;
@@ -11,14 +12,109 @@ public interface TaskRepositoryInterface extends Remote {
 	
 	public Task getNext(UUID clientId) throws RemoteException;
 	
+	/**
+	 * Similar to {@link #getNext(UUID)}, but waits up to maxWaitMillis for a Task to be added or
+	 * returned to the repository.
+	 * 
+	 * @return the leased Task, or null if no Task was available before the time elapsed
+	 */
+	public Task getNext(UUID clientId, long maxWaitMillis) throws RemoteException;
+	
+	/**
+	 * Leases up to maxTasks pending Tasks to the Client at once, each one with its own timeout.
+	 * 
+	 * @return the leased Tasks, or an empty list if there is no pending Task
+	 */
+	public List<Task> getNextBatch(UUID clientId, int maxTasks) throws RemoteException;
+	
+	/**
+	 * Similar to {@link #getNextBatch(UUID, int)}, but waits up to maxWaitMillis for the first 
+	 * Task to be added or returned to the repository.
+	 * 
+	 * @return the leased Tasks, or an empty list if no Task was available before the time elapsed
+	 */
+	public List<Task> getNextBatch(UUID clientId, int maxTasks, long maxWaitMillis)
+			throws RemoteException;
+	
+	/**
+	 * Extends the timeout of a Task the Client is still processing.
+	 * 
+	 * @return false if the Task is no longer leased to the Client, which should then give up
+	 *         processing it
+	 */
+	public boolean renewLease(UUID clientId, UUID taskId) throws RemoteException;
+	
+	/**
+	 * Sends the logs found since the previous report, and the number of bytes of the section of
+	 * the Task already processed, counted from {@link Task#getPosition()}. If the Task is returned
+	 * to the repository, the next Client resumes it from there. The report also renews the lease.
+	 * 
+	 * @return the number of bytes of the section the Client must process, counted from
+	 *         {@link Task#getPosition()}, which is less than {@link Task#getLength()} if the rest
+	 *         was split to another Task; or -1 if the Task is no longer leased to the Client,
+	 *         which should then give up processing it
+	 */
+	public long reportProgress(UUID clientId, UUID taskId, long bytesDone,
+			List<ResultLog> partialLogs) throws RemoteException;
+	
 	public void setResult(UUID clientId, UUID taskId, Result result) throws RemoteException;
 	
 	public List<ResultLog> getResult(List<UUID> taskIds) throws RemoteException;
 	
+	/**
+	 * Opens a cursor to read the results of the Tasks in pages, with
+	 * {@link #nextResultPage(UUID, int)}. The results are removed when the last page is read.
+	 * 
+	 * @return the cursor id
+	 * @throws RemoteException
+	 *             if some of the Tasks has no result, in which case nothing is removed
+	 */
+	public UUID openResultCursor(List<UUID> taskIds) throws RemoteException;
+	
+	/**
+	 * Reads the next logs of a cursor opened by {@link #openResultCursor(List)}.
+	 * 
+	 * @return up to maxLogs logs, and whether there are more to read
+	 */
+	public ResultPage nextResultPage(UUID cursorId, int maxLogs) throws RemoteException;
+	
+	/**
+	 * Discards a cursor before all of its pages are read, leaving the results in the repository.
+	 */
+	public void closeResultCursor(UUID cursorId) throws RemoteException;
+	
 	public void setFailure(UUID clientId, UUID taskId, String msg) throws RemoteException;
 	
 	public void addTask(Task task) throws RemoteException;
 	
+	/**
+	 * Similar to {@link #addTask(Task)}, but sets the priority of the file of the Task. A file
+	 * with priority 2 gets twice the share of the Clients of a file with priority 1.
+	 */
+	public void addTask(Task task, int priority) throws RemoteException;
+	
+	/**
+	 * Adds all the Tasks to the end of the queue at once, in order.
+	 */
+	public void addTasks(List<Task> tasks) throws RemoteException;
+	
+	/**
+	 * Similar to {@link #addTasks(List)}, but sets the priority of the files of the Tasks.
+	 */
+	public void addTasks(List<Task> tasks, int priority) throws RemoteException;
+	
 	public TaskStatus getStatus(UUID taskId) throws RemoteException;
 	
+	/**
+	 * Gets the number of Tasks waiting for a Client, so the Clients of a sharded repository can
+	 * find the busiest shard.
+	 */
+	public int getPendingCount() throws RemoteException;
+	
+	/**
+	 * Gets the current values of the metrics of the repository, such as the counters of the
+	 * Tasks and the percentiles of their time in the queue, by name.
+	 */
+	public Map<String, Long> getStatistics() throws RemoteException;
+	
 }
@@ -0,0 +1,141 @@
+package ce288.tasks;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ce288.transport.Protocol;
+import ce288.transport.TransportClient;
+
+/**
+ * Finds the {@link TaskRepository}, which may be partitioned in several shards.
+ * 
+ * The transport is chosen at startup by the system property {@link #TRANSPORT_PROPERTY}: with
+ * "rmi", the default, the repository is looked up in the RMI registry; with "nio", it is called
+ * with the binary protocol of the {@link TransportClient}, at the port given by
+ * {@link #PORT_PROPERTY}, or at the "host:port" addresses listed in {@link #SHARDS_PROPERTY}.
+ */
+public class TaskRepositoryLocator {
+
+	/**
+	 * Name of the repository in the registry. The shards are bound as this name followed by
+	 * {@link #SHARD_SEPARATOR} and the name of the shard.
+	 */
+	public static final String NAME = "TaskRepository";
+
+	public static final String SHARD_SEPARATOR = ".";
+
+	public static final String TRANSPORT_PROPERTY = "ce288.transport";
+
+	public static final String PORT_PROPERTY = "ce288.transport.port";
+
+	public static final String SHARDS_PROPERTY = "ce288.transport.shards";
+
+	public static final String RMI = "rmi";
+
+	public static final String NIO = "nio";
+
+	/**
+	 * Whether the repository is called with the NIO transport instead of RMI.
+	 * 
+	 * @return true if the system property {@link #TRANSPORT_PROPERTY} is "nio"
+	 */
+	public static boolean isNio() {
+		return NIO.equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY, RMI));
+	}
+
+	/**
+	 * Gets the port of the NIO transport.
+	 * 
+	 * @return the port given by the system property {@link #PORT_PROPERTY}, or
+	 *         {@link Protocol#DEFAULT_PORT}
+	 */
+	public static int getPort() {
+		return Integer.getInteger(PORT_PROPERTY, Protocol.DEFAULT_PORT);
+	}
+
+	/**
+	 * Finds the repository with the transport chosen at startup.
+	 * 
+	 * @param host
+	 *            the host of the Server, or null for the local host
+	 * @return the repository
+	 * @throws RemoteException
+	 *             if the registry could not be contacted
+	 * @throws NotBoundException
+	 *             if there is no repository bound in the registry
+	 */
+	public static TaskRepositoryInterface locate(String host) throws RemoteException,
+			NotBoundException {
+		if (!isNio()) {
+			return lookup(LocateRegistry.getRegistry(host));
+		}
+		String shards = System.getProperty(SHARDS_PROPERTY);
+		if (shards == null || shards.trim().isEmpty()) {
+			return new TransportClient(host == null ? "localhost" : host, getPort());
+		}
+		// Every process must see the shards in the same order
+		String[] names = shards.trim().split("\\s*,\\s*");
+		Arrays.sort(names);
+		TaskRepositoryInterface[] clients = new TaskRepositoryInterface[names.length];
+		for (int i = 0; i < names.length; i++) {
+			int colon = names[i].lastIndexOf(':');
+			clients[i] = new TransportClient(names[i].substring(0, colon),
+					Integer.parseInt(names[i].substring(colon + 1)));
+		}
+		if (clients.length == 1) {
+			return clients[0];
+		}
+		return new ShardedTaskRepository(names, clients);
+	}
+
+	/**
+	 * Gets the name a shard is bound to in the registry.
+	 * 
+	 * @param shard
+	 *            the name of the shard, or null if the repository is not sharded
+	 * @return the name in the registry
+	 */
+	public static String getBindingName(String shard) {
+		return shard == null ? NAME : NAME + SHARD_SEPARATOR + shard;
+	}
+
+	/**
+	 * Looks up the repository. If there are shards bound, they are all used through a
+	 * {@link ShardedTaskRepository}, so the shards must be started before the Clients and the
+	 * FileServers.
+	 * 
+	 * @param registry
+	 *            the registry
+	 * @return the repository
+	 * @throws RemoteException
+	 *             if the registry could not be contacted
+	 * @throws NotBoundException
+	 *             if there is no repository bound
+	 */
+	public static TaskRepositoryInterface lookup(Registry registry) throws RemoteException,
+			NotBoundException {
+		List<String> names = new ArrayList<String>();
+		for (String name : registry.list()) {
+			if (name.startsWith(NAME + SHARD_SEPARATOR)) {
+				names.add(name);
+			}
+		}
+		if (names.isEmpty()) {
+			return (TaskRepositoryInterface) registry.lookup(NAME);
+		}
+		// Every process must see the shards in the same order
+		Collections.sort(names);
+		TaskRepositoryInterface[] shards = new TaskRepositoryInterface[names.size()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = (TaskRepositoryInterface) registry.lookup(names.get(i));
+		}
+		return new ShardedTaskRepository(names.toArray(new String[names.size()]), shards);
+	}
+
+}
@@ -0,0 +1,67 @@
+package ce288.tasks;
+
+/**
+ * Exponentially weighted moving average of the rate at which the Clients process the bytes of
+ * the files.
+ */
+public class ThroughputEstimator {
+
+	/**
+	 * Weight of each new sample in the average.
+	 */
+	private final double alpha;
+
+	/**
+	 * Current estimate, in bytes per millisecond, or 0 if there are no samples yet.
+	 */
+	private double rate;
+
+	public ThroughputEstimator(double alpha) {
+		this.alpha = alpha;
+		this.rate = 0;
+	}
+
+	/**
+	 * Adds the measure of one processed section to the estimate.
+	 * 
+	 * @param bytes
+	 *            the number of bytes processed
+	 * @param millis
+	 *            the time spent processing them
+	 */
+	public synchronized void add(long bytes, long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		double sample = (double) bytes / millis;
+		if (rate == 0) {
+			rate = sample;
+		} else {
+			rate = alpha * sample + (1 - alpha) * rate;
+		}
+	}
+
+	/**
+	 * Gets the current estimate.
+	 * 
+	 * @return the rate, in bytes per millisecond, or 0 if there are no samples yet
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Estimates the time to process a number of bytes.
+	 * 
+	 * @param bytes
+	 *            the number of bytes
+	 * @return the time in milliseconds, or -1 if there are no samples yet
+	 */
+	public synchronized long estimate(long bytes) {
+		if (rate == 0) {
+			return -1;
+		}
+		return (long) Math.ceil(bytes / rate);
+	}
+
+}
@@ -0,0 +1,98 @@
+package ce288.transport;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import ce288.tasks.Encoding;
+import ce288.tasks.Result.ResultLog;
+import ce288.tasks.Task;
+import ce288.tasks.TaskBatch;
+import ce288.tasks.TaskRepositoryInterface;
+
+/**
+ * Binary protocol of the calls of {@link TaskRepositoryInterface} over the NIO transport.
+ * 
+ * Each request is a frame [length][request id][method][arguments], and each response is a frame
+ * [length][request id][status][return value or error message], where length counts the bytes
+ * after it. The request id is chosen by the caller, so several requests may be sent on the same
+ * connection without waiting for the previous responses, which may arrive in any order.
+ */
+public class Protocol {
+
+	/**
+	 * Default port of the {@link TransportServer}.
+	 */
+	public static final int DEFAULT_PORT = 12346;
+
+	/**
+	 * Maximum length of a frame, 64MB, beyond which the connection is considered corrupted.
+	 */
+	public static final int MAX_FRAME_SIZE = 67108864;
+
+	public static final byte GET_NEXT_BATCH = 1;
+	public static final byte RENEW_LEASE = 2;
+	public static final byte REPORT_PROGRESS = 3;
+	public static final byte SET_RESULT = 4;
+	public static final byte GET_RESULT = 5;
+	public static final byte OPEN_RESULT_CURSOR = 6;
+	public static final byte NEXT_RESULT_PAGE = 7;
+	public static final byte CLOSE_RESULT_CURSOR = 8;
+	public static final byte SET_FAILURE = 9;
+	public static final byte ADD_TASKS = 10;
+	public static final byte GET_STATUS = 11;
+	public static final byte GET_PENDING_COUNT = 12;
+	public static final byte GET_STATISTICS = 13;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	public static void writeUUID(DataOutput out, UUID id) throws IOException {
+		Encoding.writeUUID(out, id);
+	}
+
+	public static UUID readUUID(DataInput in) throws IOException {
+		return Encoding.readUUID(in);
+	}
+
+	public static void writeUUIDs(DataOutput out, List<UUID> ids) throws IOException {
+		out.writeInt(ids.size());
+		for (UUID id : ids) {
+			writeUUID(out, id);
+		}
+	}
+
+	public static List<UUID> readUUIDs(DataInput in) throws IOException {
+		int count = in.readInt();
+		List<UUID> ids = new ArrayList<UUID>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(readUUID(in));
+		}
+		return ids;
+	}
+
+	/**
+	 * Writes the Tasks as a {@link TaskBatch}, with the filenames and locations
+	 * dictionary-encoded.
+	 */
+	public static void writeTasks(DataOutput out, List<Task> tasks) throws IOException {
+		TaskBatch batch = tasks instanceof TaskBatch ? (TaskBatch) tasks : new TaskBatch(tasks);
+		batch.write(out);
+	}
+
+	public static List<Task> readTasks(DataInput in) throws IOException {
+		return TaskBatch.read(in);
+	}
+
+	public static void writeLogs(DataOutput out, List<ResultLog> logs) throws IOException {
+		Encoding.writeLogs(out, logs);
+	}
+
+	public static List<ResultLog> readLogs(DataInput in) throws IOException {
+		return Encoding.readLogs(in);
+	}
+
+}
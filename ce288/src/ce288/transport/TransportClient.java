@@ -0,0 +1,434 @@
+package ce288.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Result;
+import ce288.tasks.Result.ResultLog;
+import ce288.tasks.ResultPage;
+import ce288.tasks.Task;
+import ce288.tasks.TaskQueue;
+import ce288.tasks.TaskRepositoryInterface;
+import ce288.tasks.TaskStatus;
+
+/**
+ * Calls a {@link TransportServer} with the binary {@link Protocol}, as an alternative to the RMI
+ * stub of the repository.
+ * 
+ * All the threads of the process share a single persistent connection. The requests are written
+ * as soon as they are made, without waiting for the responses of the previous ones, and a
+ * reader thread hands each response to the thread waiting for it. If the connection is lost, the
+ * pending calls fail and the next call opens a new connection.
+ */
+public class TransportClient implements TaskRepositoryInterface {
+
+	public final static Logger logger = LoggerFactory.getLogger(TransportClient.class);
+
+	/**
+	 * Maximum number of characters of the failure message sent to the server, which writes it
+	 * with {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private static final int MAX_FAILURE_LENGTH = 4096;
+
+	private final String host;
+
+	private final int port;
+
+	private final AtomicInteger nextRequestId;
+
+	/**
+	 * The calls waiting for a response, by request id.
+	 */
+	private final Map<Integer, Call> calls;
+
+	private Socket socket;
+
+	private DataOutputStream out;
+
+	public TransportClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+		this.nextRequestId = new AtomicInteger(0);
+		this.calls = new ConcurrentHashMap<Integer, Call>();
+	}
+
+	@Override
+	public Task getNext(UUID clientId) throws RemoteException {
+		return getNext(clientId, 0);
+	}
+
+	@Override
+	public Task getNext(UUID clientId, long maxWaitMillis) throws RemoteException {
+		List<Task> batch = getNextBatch(clientId, 1, maxWaitMillis);
+		return batch.isEmpty() ? null : batch.get(0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks) throws RemoteException {
+		return getNextBatch(clientId, maxTasks, 0);
+	}
+
+	@Override
+	public List<Task> getNextBatch(UUID clientId, int maxTasks, long maxWaitMillis)
+			throws RemoteException {
+		try {
+			Request request = new Request(Protocol.GET_NEXT_BATCH);
+			Protocol.writeUUID(request.out, clientId);
+			request.out.writeInt(maxTasks);
+			request.out.writeLong(maxWaitMillis);
+			return Protocol.readTasks(call(request));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public boolean renewLease(UUID clientId, UUID taskId) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.RENEW_LEASE);
+			Protocol.writeUUID(request.out, clientId);
+			Protocol.writeUUID(request.out, taskId);
+			return call(request).readBoolean();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public long reportProgress(UUID clientId, UUID taskId, long bytesDone,
+			List<ResultLog> partialLogs) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.REPORT_PROGRESS);
+			Protocol.writeUUID(request.out, clientId);
+			Protocol.writeUUID(request.out, taskId);
+			request.out.writeLong(bytesDone);
+			Protocol.writeLogs(request.out, partialLogs);
+			return call(request).readLong();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public void setResult(UUID clientId, UUID taskId, Result result) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.SET_RESULT);
+			Protocol.writeUUID(request.out, clientId);
+			Protocol.writeUUID(request.out, taskId);
+			Protocol.writeLogs(request.out, result.getLogs());
+			call(request);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public List<ResultLog> getResult(List<UUID> taskIds) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.GET_RESULT);
+			Protocol.writeUUIDs(request.out, taskIds);
+			return Protocol.readLogs(call(request));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public UUID openResultCursor(List<UUID> taskIds) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.OPEN_RESULT_CURSOR);
+			Protocol.writeUUIDs(request.out, taskIds);
+			return Protocol.readUUID(call(request));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public ResultPage nextResultPage(UUID cursorId, int maxLogs) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.NEXT_RESULT_PAGE);
+			Protocol.writeUUID(request.out, cursorId);
+			request.out.writeInt(maxLogs);
+			DataInputStream in = call(request);
+			boolean last = in.readBoolean();
+			return new ResultPage(Protocol.readLogs(in), last);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public void closeResultCursor(UUID cursorId) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.CLOSE_RESULT_CURSOR);
+			Protocol.writeUUID(request.out, cursorId);
+			call(request);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public void setFailure(UUID clientId, UUID taskId, String msg) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.SET_FAILURE);
+			Protocol.writeUUID(request.out, clientId);
+			Protocol.writeUUID(request.out, taskId);
+			String text = msg == null ? "" : msg;
+			request.out.writeUTF(text.length() > MAX_FAILURE_LENGTH ? text.substring(0,
+					MAX_FAILURE_LENGTH) : text);
+			call(request);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public void addTask(Task task) throws RemoteException {
+		addTask(task, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTask(Task task, int priority) throws RemoteException {
+		addTasks(Collections.singletonList(task), priority);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks) throws RemoteException {
+		addTasks(tasks, TaskQueue.DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public void addTasks(List<Task> tasks, int priority) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.ADD_TASKS);
+			request.out.writeInt(priority);
+			Protocol.writeTasks(request.out, tasks);
+			call(request);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public TaskStatus getStatus(UUID taskId) throws RemoteException {
+		try {
+			Request request = new Request(Protocol.GET_STATUS);
+			Protocol.writeUUID(request.out, taskId);
+			return TaskStatus.values()[call(request).readByte()];
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public int getPendingCount() throws RemoteException {
+		try {
+			return call(new Request(Protocol.GET_PENDING_COUNT)).readInt();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public Map<String, Long> getStatistics() throws RemoteException {
+		try {
+			DataInputStream in = call(new Request(Protocol.GET_STATISTICS));
+			int count = in.readInt();
+			Map<String, Long> values = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < count; i++) {
+				values.put(in.readUTF(), in.readLong());
+			}
+			return values;
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the return value
+	 * @throws IOException
+	 *             if the connection failed, or if the call failed in the server
+	 */
+	private DataInputStream call(Request request) throws IOException {
+		int requestId = nextRequestId.incrementAndGet();
+		Call call = new Call();
+		calls.put(requestId, call);
+		try {
+			byte[] frame = request.bytes.toByteArray();
+			synchronized (this) {
+				DataOutputStream output = connect();
+				call.connection = socket;
+				output.writeInt(frame.length + 4);
+				output.writeInt(requestId);
+				output.write(frame);
+				output.flush();
+			}
+			return call.await();
+		} finally {
+			calls.remove(requestId);
+		}
+	}
+
+	/**
+	 * Opens the connection if it is not open, and starts the thread that reads the responses.
+	 * Must be called with the lock of this object held.
+	 */
+	private DataOutputStream connect() throws IOException {
+		if (socket != null && !socket.isClosed()) {
+			return out;
+		}
+		final Socket connection = new Socket();
+		connection.setTcpNoDelay(true);
+		connection.connect(new InetSocketAddress(host, port));
+		socket = connection;
+		out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses(connection);
+			}
+		}, "TransportReader");
+		reader.setDaemon(true);
+		reader.start();
+		logger.info("Connected to {}:{}.", host, port);
+		return out;
+	}
+
+	/**
+	 * Reads the responses of a connection until it is closed, and fails the pending calls then.
+	 */
+	private void readResponses(Socket connection) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					connection.getInputStream()));
+			while (true) {
+				int length = in.readInt();
+				if (length < 5 || length > Protocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				int requestId = in.readInt();
+				byte status = in.readByte();
+				byte[] value = new byte[length - 5];
+				in.readFully(value);
+				Call call = calls.get(requestId);
+				if (call != null) {
+					call.complete(status, value);
+				}
+			}
+		} catch (IOException e) {
+			logger.info("Connection to {}:{} lost: {}", host, port, e.getMessage());
+		}
+		synchronized (this) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+		for (Call call : calls.values()) {
+			if (call.connection == connection) {
+				call.fail();
+			}
+		}
+	}
+
+	private RemoteException failure(IOException e) {
+		if (e instanceof RemoteException) {
+			return (RemoteException) e;
+		}
+		return new RemoteException("Transport to " + host + ":" + port + " failed", e);
+	}
+
+	/**
+	 * The method and the arguments of a request.
+	 */
+	private static class Request {
+
+		private final ByteArrayOutputStream bytes;
+
+		private final DataOutputStream out;
+
+		public Request(byte method) throws IOException {
+			bytes = new ByteArrayOutputStream(64);
+			out = new DataOutputStream(bytes);
+			out.writeByte(method);
+		}
+
+	}
+
+	/**
+	 * A call waiting for its response.
+	 */
+	private static class Call {
+
+		private byte status;
+
+		private byte[] value;
+
+		private boolean done = false;
+
+		private boolean failed = false;
+
+		/**
+		 * The connection the request was sent on.
+		 */
+		private volatile Socket connection;
+
+		public synchronized void complete(byte status, byte[] value) {
+			this.status = status;
+			this.value = value;
+			this.done = true;
+			notifyAll();
+		}
+
+		public synchronized void fail() {
+			this.failed = true;
+			notifyAll();
+		}
+
+		public synchronized DataInputStream await() throws IOException {
+			while (!done && !failed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the response", e);
+				}
+			}
+			if (!done) {
+				throw new IOException("Connection lost before the response");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+			if (status != Protocol.OK) {
+				throw new RemoteException(in.readUTF());
+			}
+			return in;
+		}
+
+	}
+
+}
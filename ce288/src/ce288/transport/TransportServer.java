@@ -0,0 +1,395 @@
+package ce288.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ce288.tasks.Result;
+import ce288.tasks.Result.ResultLog;
+import ce288.tasks.ResultPage;
+import ce288.tasks.Task;
+import ce288.tasks.TaskRepositoryInterface;
+
+/**
+ * Serves the calls of {@link TaskRepositoryInterface} with the binary {@link Protocol}.
+ * 
+ * A single thread accepts the connections, reads the requests and writes the responses with a
+ * {@link Selector}. Each request is executed by a thread of a pool, so the requests pipelined on
+ * a connection are executed concurrently and answered as soon as each one is done.
+ * 
+ * The pool has {@link #MAX_THREADS_PROPERTY} threads. The calls to getNextBatch() that wait for
+ * new Tasks run on their own pool of {@link #MAX_POLLS_PROPERTY} threads, so they never hold the
+ * threads of the other requests. While all of them are waiting, the other calls return at once
+ * with the Tasks available, and the Clients poll again.
+ */
+public class TransportServer implements Runnable {
+
+	public final static Logger logger = LoggerFactory.getLogger(TransportServer.class);
+
+	/**
+	 * Maximum number of characters of the error message sent to the caller.
+	 */
+	private static final int MAX_ERROR_LENGTH = 4096;
+
+	/**
+	 * System property with the number of threads executing the requests.
+	 */
+	public static final String MAX_THREADS_PROPERTY = "ce288.transport.maxThreads";
+
+	/**
+	 * System property with the maximum number of calls to getNextBatch() waiting for Tasks.
+	 */
+	public static final String MAX_POLLS_PROPERTY = "ce288.transport.maxPolls";
+
+	public static final int DEFAULT_MAX_THREADS = 32;
+
+	public static final int DEFAULT_MAX_POLLS = 256;
+
+	private final TaskRepositoryInterface repository;
+
+	private final int port;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Executes the calls to getNextBatch() that may wait, one thread for each permit of
+	 * {@link #polls}.
+	 */
+	private final ExecutorService pollExecutor;
+
+	private final Semaphore polls;
+
+	private Selector selector;
+
+	public TransportServer(TaskRepositoryInterface repository, int port) {
+		this.repository = repository;
+		this.port = port;
+		int maxPolls = Math.max(1, Integer.getInteger(MAX_POLLS_PROPERTY, DEFAULT_MAX_POLLS));
+		this.executor = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger(
+				MAX_THREADS_PROPERTY, DEFAULT_MAX_THREADS)));
+		this.pollExecutor = Executors.newFixedThreadPool(maxPolls);
+		this.polls = new Semaphore(maxPolls);
+	}
+
+	@Override
+	public void run() {
+		try {
+			selector = Selector.open();
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			logger.info("Transport listening on port {}.", port);
+			while (true) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						accept(server);
+						continue;
+					}
+					try {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						logger.info("Closing connection: {}", e.getMessage());
+						key.cancel();
+						try {
+							key.channel().close();
+						} catch (IOException e1) {
+							logger.debug(e1.getMessage(), e1);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Accepts a connection. A failure only drops that connection, the listening channel stays
+	 * open.
+	 */
+	private void accept(ServerSocketChannel server) {
+		SocketChannel channel;
+		try {
+			channel = server.accept();
+		} catch (IOException e) {
+			logger.warn("Could not accept connection: {}", e.getMessage());
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(key));
+			logger.info("Received connection from {}.", channel.socket().getInetAddress());
+		} catch (IOException e) {
+			logger.warn("Could not accept connection: {}", e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				logger.debug(e1.getMessage(), e1);
+			}
+		}
+	}
+
+	/**
+	 * Executes a request.
+	 * 
+	 * @param method
+	 *            the method code
+	 * @param in
+	 *            the arguments
+	 * @param out
+	 *            where the return value is written to
+	 * @param wait
+	 *            whether getNextBatch() may wait for new Tasks
+	 * @throws IOException
+	 *             if the call failed, or if the arguments are malformed
+	 */
+	private void execute(byte method, DataInputStream in, DataOutputStream out, boolean wait)
+			throws IOException {
+		switch (method) {
+		case Protocol.GET_NEXT_BATCH: {
+			UUID clientId = Protocol.readUUID(in);
+			int maxTasks = in.readInt();
+			long maxWaitMillis = in.readLong();
+			if (!wait) {
+				maxWaitMillis = 0;
+			}
+			Protocol.writeTasks(out, repository.getNextBatch(clientId, maxTasks, maxWaitMillis));
+			break;
+		}
+		case Protocol.RENEW_LEASE: {
+			UUID clientId = Protocol.readUUID(in);
+			out.writeBoolean(repository.renewLease(clientId, Protocol.readUUID(in)));
+			break;
+		}
+		case Protocol.REPORT_PROGRESS: {
+			UUID clientId = Protocol.readUUID(in);
+			UUID taskId = Protocol.readUUID(in);
+			long bytesDone = in.readLong();
+			out.writeLong(repository.reportProgress(clientId, taskId, bytesDone,
+					Protocol.readLogs(in)));
+			break;
+		}
+		case Protocol.SET_RESULT: {
+			UUID clientId = Protocol.readUUID(in);
+			UUID taskId = Protocol.readUUID(in);
+			Result result = new Result(taskId);
+			for (ResultLog log : Protocol.readLogs(in)) {
+				result.addLog(log.getPos(), log.getMsg());
+			}
+			repository.setResult(clientId, taskId, result);
+			break;
+		}
+		case Protocol.GET_RESULT:
+			Protocol.writeLogs(out, repository.getResult(Protocol.readUUIDs(in)));
+			break;
+		case Protocol.OPEN_RESULT_CURSOR:
+			Protocol.writeUUID(out, repository.openResultCursor(Protocol.readUUIDs(in)));
+			break;
+		case Protocol.NEXT_RESULT_PAGE: {
+			UUID cursorId = Protocol.readUUID(in);
+			ResultPage page = repository.nextResultPage(cursorId, in.readInt());
+			out.writeBoolean(page.isLast());
+			Protocol.writeLogs(out, page.getLogs());
+			break;
+		}
+		case Protocol.CLOSE_RESULT_CURSOR:
+			repository.closeResultCursor(Protocol.readUUID(in));
+			break;
+		case Protocol.SET_FAILURE: {
+			UUID clientId = Protocol.readUUID(in);
+			UUID taskId = Protocol.readUUID(in);
+			repository.setFailure(clientId, taskId, in.readUTF());
+			break;
+		}
+		case Protocol.ADD_TASKS: {
+			int priority = in.readInt();
+			repository.addTasks(Protocol.readTasks(in), priority);
+			break;
+		}
+		case Protocol.GET_STATUS:
+			out.writeByte(repository.getStatus(Protocol.readUUID(in)).ordinal());
+			break;
+		case Protocol.GET_PENDING_COUNT:
+			out.writeInt(repository.getPendingCount());
+			break;
+		case Protocol.GET_STATISTICS: {
+			Map<String, Long> values = repository.getStatistics();
+			out.writeInt(values.size());
+			for (Map.Entry<String, Long> entry : values.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown method " + method);
+		}
+	}
+
+	/**
+	 * The state of a connection. Only the thread of the selector reads and writes the channel.
+	 */
+	private class Connection {
+
+		private final SelectionKey key;
+
+		private final SocketChannel channel;
+
+		private ByteBuffer input;
+
+		/**
+		 * The responses waiting to be written.
+		 */
+		private final Queue<ByteBuffer> output;
+
+		public Connection(SelectionKey key) {
+			this.key = key;
+			this.channel = (SocketChannel) key.channel();
+			this.input = ByteBuffer.allocate(8192);
+			this.output = new ArrayDeque<ByteBuffer>();
+		}
+
+		/**
+		 * Reads the available bytes and dispatches the complete requests.
+		 */
+		public void read() throws IOException {
+			if (channel.read(input) < 0) {
+				throw new IOException("Connection closed by the peer");
+			}
+			input.flip();
+			while (input.remaining() >= 4) {
+				int length = input.getInt(input.position());
+				if (length < 5 || length > Protocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (input.remaining() < 4 + length) {
+					if (input.capacity() < 4 + length) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(input);
+						input = larger;
+						return;
+					}
+					break;
+				}
+				input.getInt();
+				final int requestId = input.getInt();
+				final byte method = input.get();
+				final byte[] arguments = new byte[length - 5];
+				input.get(arguments);
+				if (method == Protocol.GET_NEXT_BATCH && polls.tryAcquire()) {
+					pollExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								respond(requestId, method, arguments, true);
+							} finally {
+								polls.release();
+							}
+						}
+					});
+				} else {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							respond(requestId, method, arguments, false);
+						}
+					});
+				}
+			}
+			input.compact();
+		}
+
+		/**
+		 * Writes the pending responses, as much as the channel accepts.
+		 */
+		public void write() throws IOException {
+			synchronized (output) {
+				while (!output.isEmpty()) {
+					ByteBuffer buffer = output.peek();
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						return;
+					}
+					output.poll();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Executes a request and queues its response. Called by a thread of the pools.
+		 */
+		private void respond(int requestId, byte method, byte[] arguments, boolean wait) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(0);
+				out.writeInt(requestId);
+				out.writeByte(Protocol.OK);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(arguments));
+				execute(method, in, out, wait);
+			} catch (IOException | RuntimeException e) {
+				logger.debug("Request {} failed: {}", requestId, e.getMessage());
+				bytes.reset();
+				try {
+					out.writeInt(0);
+					out.writeInt(requestId);
+					out.writeByte(Protocol.ERROR);
+					String msg = String.valueOf(e.getMessage());
+					out.writeUTF(msg.length() > MAX_ERROR_LENGTH ? msg.substring(0, MAX_ERROR_LENGTH)
+							: msg);
+				} catch (IOException e1) {
+					logger.error(e1.getMessage(), e1);
+					return;
+				}
+			}
+			ByteBuffer response = ByteBuffer.wrap(bytes.toByteArray());
+			response.putInt(0, response.capacity() - 4);
+			synchronized (output) {
+				if (!key.isValid()) {
+					return;
+				}
+				output.add(response);
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			selector.wakeup();
+		}
+
+	}
+
+}
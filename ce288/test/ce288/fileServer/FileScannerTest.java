@@ -0,0 +1,344 @@
+package ce288.fileServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+import ce288.tasks.FileFormat;
+import ce288.tasks.FileFormatException;
+
+/**
+ * Checks the {@link FileScanner} against a brute force scan of generated files: the cuts of the
+ * sections, their checksums and records, the entries of the {@link LineIndex}, the combination
+ * of the CRC-32s and the detection of the format.
+ *
+ * The files span several chunks of {@link FileScanner#CHUNK_SIZE} bytes, with lines longer than
+ * a block of the index and than a whole chunk, with and without a final line terminator.
+ *
+ * Usage: FileScannerTest [SEED], exits with status 1 if some check failed.
+ */
+public class FileScannerTest {
+
+	private static final String HEADER = "Station EMBRACE test file\n";
+
+	private final Random random;
+
+	private final FileScanner scanner;
+
+	private final File dir;
+
+	private int checks;
+
+	private int failures;
+
+	public FileScannerTest(long seed) throws IOException {
+		this.random = new Random(seed);
+		this.scanner = new FileScanner(new ForkJoinPool());
+		this.dir = File.createTempFile("scanner", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create folder " + dir);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		System.out.println("Seed " + seed);
+		FileScannerTest test = new FileScannerTest(seed);
+		try {
+			test.testCombine();
+			test.testSmallFiles();
+			test.testLargeFile();
+			test.testLongHeader();
+			test.testUnknownFormat();
+		} finally {
+			test.cleanUp();
+		}
+		System.out.println(test.checks + " checks, " + test.failures + " failures");
+		System.exit(test.failures == 0 ? 0 : 1);
+	}
+
+	void testCombine() {
+		for (int i = 0; i < 1000; i++) {
+			byte[] bytes = new byte[random.nextInt(4096)];
+			random.nextBytes(bytes);
+			int split = bytes.length == 0 ? 0 : random.nextInt(bytes.length + 1);
+			long combined = FileScanner.combine(crc(bytes, 0, split), crc(bytes, split,
+					bytes.length), bytes.length - split);
+			check(combined == crc(bytes, 0, bytes.length), "combine of " + split + " and "
+					+ (bytes.length - split) + " bytes");
+		}
+	}
+
+	void testSmallFiles() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			byte[] bytes = generate(random.nextInt(200000) + 1, 200, random.nextBoolean(),
+					random.nextBoolean());
+			File file = write("small" + i, bytes);
+			for (long sectionSize : new long[] { 1, 7, 100, 4096, 65536, 1048576 }) {
+				checkScan(file, bytes, sectionSize);
+			}
+		}
+	}
+
+	void testLargeFile() throws IOException {
+		int length = (int) (2.5 * FileScanner.CHUNK_SIZE);
+		byte[] bytes = generate(length, 2000, true, false);
+		// A line longer than a chunk, starting just before the end of the first one
+		int start = (int) FileScanner.CHUNK_SIZE - 1000;
+		Arrays.fill(bytes, start, start + (int) FileScanner.CHUNK_SIZE + 5000, (byte) 'x');
+		bytes[start - 1] = '\n';
+		// Lines longer than a block of the index
+		for (int i = 0; i < 5; i++) {
+			int from = random.nextInt(length - 3 * LineIndex.INTERVAL);
+			Arrays.fill(bytes, from, from + LineIndex.INTERVAL + random.nextInt(
+					LineIndex.INTERVAL), (byte) 'y');
+		}
+		File file = write("large", bytes);
+		for (long sectionSize : new long[] { 65536, 1048576 + 17, 10485760,
+				FileScanner.CHUNK_SIZE, 100L * FileScanner.CHUNK_SIZE }) {
+			checkScan(file, bytes, sectionSize);
+		}
+		bytes[bytes.length - 1] = 'z';
+		file = write("large-unterminated", bytes);
+		checkScan(file, bytes, 1048576);
+	}
+
+	/**
+	 * The header and the first line of data do not fit in the first block.
+	 */
+	void testLongHeader() throws IOException {
+		StringBuilder header = new StringBuilder();
+		for (int i = 0; i < 3 * LineIndex.INTERVAL; i++) {
+			header.append('h');
+		}
+		header.append(" EMBRACE\n");
+		byte[] head = header.toString().getBytes(StandardCharsets.US_ASCII);
+		byte[] data = generate(100000, 100, false, false);
+		byte[] bytes = Arrays.copyOf(head, head.length + data.length);
+		System.arraycopy(data, 0, bytes, head.length, data.length);
+		File file = write("long-header", bytes);
+		FileScan scan = checkScan(file, bytes, 65536);
+		check(scan != null && scan.getFormat() == FileFormat.EMBRACE,
+				"format after a long header");
+	}
+
+	void testUnknownFormat() throws IOException {
+		File file = write("unknown", "no mark in this header\n1 2 3 4 5 6\n"
+				.getBytes(StandardCharsets.US_ASCII));
+		try {
+			scanner.scan(file, 1048576, new Collector());
+			check(false, "unknown format must be rejected");
+		} catch (FileFormatException e) {
+			check(true, "unknown format");
+		}
+	}
+
+	/**
+	 * Scans a file and compares the result with a brute force scan of its bytes.
+	 */
+	private FileScan checkScan(File file, byte[] bytes, long sectionSize) throws IOException {
+		String name = file.getName() + " with sections of " + sectionSize;
+		Collector collector = new Collector();
+		FileScan scan;
+		try {
+			scan = scanner.scan(file, sectionSize, collector);
+		} catch (FileFormatException e) {
+			check(false, name + ": " + e.getMessage());
+			return null;
+		}
+		check(collector.ordered, name + ": scanned positions in order");
+		check(collector.sections.equals(scan.getSections()), name + ": sections given");
+
+		long[] starts = lineStarts(bytes);
+		List<Long> cuts = new ArrayList<Long>();
+		long previous = 0;
+		for (long target = sectionSize; target < bytes.length; target += sectionSize) {
+			long cut = lineStart(starts, bytes.length, target);
+			if (cut > previous && cut < bytes.length) {
+				cuts.add(cut);
+				previous = cut;
+			}
+		}
+		cuts.add((long) bytes.length);
+		List<FileScan.Section> sections = scan.getSections();
+		check(sections.size() == cuts.size(), name + ": " + sections.size() + " sections, "
+				+ cuts.size() + " expected");
+		long start = 0;
+		long total = 0;
+		for (int i = 0; i < Math.min(sections.size(), cuts.size()); i++) {
+			FileScan.Section section = sections.get(i);
+			long end = cuts.get(i);
+			long records = 0;
+			for (long k = start; k < end; k++) {
+				if (bytes[(int) k] == '\n') {
+					records++;
+				}
+			}
+			if (end == bytes.length && bytes[bytes.length - 1] != '\n') {
+				records++;
+			}
+			boolean same = section.getPosition() == start && section.getLength() == end - start
+					&& section.getRecords() == records
+					&& section.getChecksum() == crc(bytes, (int) start, (int) end);
+			check(same, name + ": section " + i + " at " + section.getPosition() + "+"
+					+ section.getLength() + ", expected " + start + "+" + (end - start));
+			total += records;
+			start = end;
+		}
+		check(scan.getRecords() == total, name + ": " + scan.getRecords() + " records, "
+				+ total + " expected");
+
+		LineIndex index = scan.getIndex();
+		for (long block = 0; block <= bytes.length / LineIndex.INTERVAL; block++) {
+			for (long offset : new long[] { block * LineIndex.INTERVAL - 1,
+					block * LineIndex.INTERVAL, block * LineIndex.INTERVAL + 1 }) {
+				checkLineStart(index, starts, bytes.length, offset, name);
+			}
+		}
+		for (int i = 0; i < 2000; i++) {
+			checkLineStart(index, starts, bytes.length, (long) (random.nextDouble()
+					* (bytes.length + 10)), name);
+		}
+		return scan;
+	}
+
+	private void checkLineStart(LineIndex index, long[] starts, long length, long offset,
+			String name) throws IOException {
+		if (offset < 0) {
+			return;
+		}
+		long expected = lineStart(starts, length, offset);
+		long found = index.lineStart(offset);
+		check(found == expected, name + ": line start at " + offset + " is " + found + ", "
+				+ expected + " expected");
+	}
+
+	/**
+	 * Generates lines of digits and spaces after a header, some of them empty.
+	 */
+	private byte[] generate(int length, int maxLine, boolean terminated, boolean crlf) {
+		byte[] bytes = new byte[length];
+		byte[] header = HEADER.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(header, 0, bytes, 0, Math.min(header.length, length));
+		int lineLeft = random.nextInt(maxLine);
+		for (int i = header.length; i < length; i++) {
+			if (lineLeft-- <= 0) {
+				bytes[i] = '\n';
+				if (crlf && i > 0 && bytes[i - 1] != '\n') {
+					bytes[i - 1] = '\r';
+				}
+				lineLeft = random.nextInt(maxLine);
+			} else {
+				bytes[i] = (byte) (random.nextInt(5) == 0 ? ' ' : '0' + random.nextInt(10));
+			}
+		}
+		if (length > header.length) {
+			bytes[length - 1] = terminated ? (byte) '\n' : (byte) '9';
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds every line start of the bytes, in order.
+	 */
+	private static long[] lineStarts(byte[] bytes) {
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+		for (int i = 0; i < bytes.length - 1; i++) {
+			if (bytes[i] == '\n') {
+				starts.add((long) i + 1);
+			}
+		}
+		long[] array = new long[starts.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = starts.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Finds the first line start at or after an offset, or the length if there is none.
+	 */
+	private static long lineStart(long[] starts, long length, long offset) {
+		int i = Arrays.binarySearch(starts, offset);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return i < starts.length ? Math.min(starts[i], length) : length;
+	}
+
+	private static long crc(byte[] bytes, int from, int to) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, from, to - from);
+		return crc.getValue();
+	}
+
+	private File write(String name, byte[] bytes) throws IOException {
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private void cleanUp() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private void check(boolean condition, String description) {
+		checks++;
+		if (!condition) {
+			failures++;
+			if (failures <= 20) {
+				System.out.println("FAILED: " + description);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the sections given by the scanner, and checks the positions scanned are in order.
+	 */
+	private static class Collector implements FileScanner.Listener {
+
+		private final List<FileScan.Section> sections = new ArrayList<FileScan.Section>();
+
+		private long scanned = 0;
+
+		private boolean ordered = true;
+
+		@Override
+		public void section(FileFormat format, FileScan.Section section) {
+			if (section.getPosition() + section.getLength() < scanned) {
+				ordered = false;
+			}
+			sections.add(section);
+		}
+
+		@Override
+		public void scanned(long position) {
+			if (position < scanned) {
+				ordered = false;
+			}
+			scanned = position;
+		}
+
+	}
+
+}